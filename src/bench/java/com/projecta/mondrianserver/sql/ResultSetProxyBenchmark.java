@@ -0,0 +1,131 @@
+package com.projecta.mondrianserver.sql;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.postgresql.util.PGobject;
+
+/**
+ * Compares the time and allocation per row of reading a result with
+ * getObject() through the {@link ResultSetProxy} and through the reflective
+ * proxy that it replaced, which checked every value for PGobject. The rows
+ * come from a {@link CachedResultSet}, so that only the wrappers are measured.
+ *
+ * Run with the classes and libraries of the war on the class path:
+ *
+ * <pre>
+ * java -cp WEB-INF/classes:WEB-INF/lib/*:. com.projecta.mondrianserver.sql.ResultSetProxyBenchmark
+ * </pre>
+ */
+public class ResultSetProxyBenchmark {
+
+    private static final int ROWS   = 200000;
+    private static final int ROUNDS = 15;
+
+    // bigint keys, a double measure, a member name, an enum and a json column
+    private static final String[] CLASSES = { "java.lang.Long", "java.lang.Long", "java.lang.Double",
+            "java.lang.String", "java.lang.Object", PGobject.class.getName() };
+    private static final int[]    TYPES   = { Types.BIGINT, Types.BIGINT, Types.DOUBLE, Types.VARCHAR, Types.OTHER,
+            Types.OTHER };
+
+
+    public static void main(String[] args) throws Exception {
+
+        CachedResult result = createResult();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int i = 0; i < 6; i++) {
+            boolean reflective = i % 2 == 0;
+            long bestNanos = Long.MAX_VALUE;
+            long bytes = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                ResultSet rows = new CachedResultSet(null, result);
+                ResultSet resultSet = reflective ? reflectiveProxy(rows) : new ResultSetProxy(null, rows);
+                long startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                long start = System.nanoTime();
+                read(resultSet);
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+                bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+            }
+            System.out.printf("%-10s %6.1f ns/row  %5.0f bytes/row%n", reflective ? "reflective" : "delegating",
+                    bestNanos / (double) ROWS, bytes / (double) ROWS);
+        }
+    }
+
+
+    private static CachedResult createResult() throws SQLException {
+
+        CachedResult.Builder builder = new CachedResult.Builder(new CachedResultSetMetaData(createMetaData()),
+                Long.MAX_VALUE);
+        for (int i = 0; i < ROWS; i++) {
+            builder.addRow(new Object[] { (long) i, (long) (i % 100), i * 0.5, "member" + (i % 1000),
+                    "enum" + (i % 7), "{\"id\": " + (i % 50) + "}" });
+        }
+        return builder.build();
+    }
+
+
+    private static ResultSetMetaData createMetaData() {
+
+        return (ResultSetMetaData) Proxy.newProxyInstance(ResultSetProxyBenchmark.class.getClassLoader(),
+                new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getColumnCount":
+                        return CLASSES.length;
+                    case "getColumnType":
+                        return TYPES[(Integer) args[0] - 1];
+                    case "getColumnClassName":
+                        return CLASSES[(Integer) args[0] - 1];
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return "c" + args[0];
+                    case "isNullable":
+                    case "getPrecision":
+                    case "getScale":
+                    case "getColumnDisplaySize":
+                        return 0;
+                    case "isSigned":
+                        return true;
+                    default:
+                        return method.getReturnType() == String.class ? "" : null;
+                    }
+                });
+    }
+
+
+    /**
+     * The reflective handler that was used before the ResultSetProxy
+     */
+    private static ResultSet reflectiveProxy(ResultSet resultSet) {
+
+        return (ResultSet) Proxy.newProxyInstance(ResultSetProxyBenchmark.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+                    try {
+                        Object value = method.invoke(resultSet, args);
+                        return value instanceof PGobject ? ((PGobject) value).getValue() : value;
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+
+    private static long read(ResultSet resultSet) throws SQLException {
+
+        long sum = 0;
+        while (resultSet.next()) {
+            for (int column = 1; column <= CLASSES.length; column++) {
+                Object value = resultSet.getObject(column);
+                sum += value == null ? 0 : value.hashCode();
+            }
+        }
+        return sum;
+    }
+}
@@ -1,8 +1,13 @@
 package com.projecta.mondrianserver.actions;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import com.projecta.mondrianserver.mondrian.MondrianConnector;
@@ -15,14 +20,39 @@ public class ActionsController {
 
     @Autowired private MondrianConnector  mondrianConnector;
     @Autowired private StatisticsProvider statisticsProvider;
+    @Autowired private ExecutionManager   executionManager;
 
     /**
-     * Flushes the mondrian caches
+     * Flushes the mondrian caches and reloads the schema in the background,
+     * or waits for the reload if requested
      */
     @RequestMapping(value = "/flush-caches", produces = "text/plain")
     @ResponseBody
-    public String flushCaches() {
-        return mondrianConnector.flushCaches();
+    public String flushCaches(@RequestParam(value = "wait", defaultValue = "false") boolean wait) {
+        return mondrianConnector.flushCaches(wait);
+    }
+
+
+    /**
+     * Flushes only the cached cells of the given cubes, fact tables or
+     * members, without reloading the schema
+     */
+    @RequestMapping(value = "/flush-caches/region", produces = "text/plain")
+    @ResponseBody
+    public String flushRegion(@RequestParam(value = "cube", defaultValue = "") List<String> cubes,
+                              @RequestParam(value = "member", defaultValue = "") List<String> members,
+                              @RequestParam(value = "table", defaultValue = "") List<String> tables) {
+        return mondrianConnector.flushRegion(nonEmpty(cubes), nonEmpty(members), nonEmpty(tables));
+    }
+
+
+    /**
+     * Displays the progress of the last schema reload
+     */
+    @RequestMapping(value = "/flush-caches/status", produces = "text/plain")
+    @ResponseBody
+    public String flushCachesStatus() {
+        return mondrianConnector.getReloadStatus();
     }
 
 
@@ -35,4 +65,44 @@ public class ActionsController {
         return statisticsProvider.getStatistics();
     }
 
+
+    /**
+     * Displays execution statistics per sql query fingerprint as JSON
+     */
+    @RequestMapping(value = "/stats/sql", produces = "application/json")
+    @ResponseBody
+    public String sqlStats(@RequestParam(value = "limit", defaultValue = "100") int limit) throws Exception {
+        return statisticsProvider.getSqlStatistics(limit);
+    }
+
+
+    /**
+     * Displays the most recent slow sql queries with their query plans as JSON
+     */
+    @RequestMapping(value = "/stats/slow-sql", produces = "application/json")
+    @ResponseBody
+    public String slowSqlStats() throws Exception {
+        return statisticsProvider.getSlowSqlStatistics();
+    }
+
+
+    /**
+     * Cancels a running execution and its sql queries
+     */
+    @RequestMapping(value = "/actions/kill/{executionId}", produces = "text/plain")
+    @ResponseBody
+    public String kill(@PathVariable("executionId") long executionId) throws Exception {
+        return executionManager.kill(executionId);
+    }
+
+
+    private static List<String> nonEmpty(List<String> values) {
+        List<String> result = new ArrayList<>();
+        for (String value : values) {
+            if (!value.trim().isEmpty()) {
+                result.add(value.trim());
+            }
+        }
+        return result;
+    }
 }
@@ -0,0 +1,82 @@
+package com.projecta.mondrianserver.actions;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+import org.springframework.stereotype.Component;
+
+import com.projecta.mondrianserver.mondrian.MondrianConnector;
+import com.projecta.mondrianserver.sql.RunningStatements;
+
+import mondrian.olap.MondrianServer;
+import mondrian.olap.Result;
+import mondrian.rolap.RolapResultShepherd;
+import mondrian.server.Execution;
+import mondrian.util.Pair;
+
+/**
+ * Access to the Mondrian executions that are currently running
+ */
+@Component
+public class ExecutionManager {
+
+    private static final Logger LOG = Logger.getLogger(ExecutionManager.class);
+
+
+    /**
+     * Retrieves the running executions from the result shepherd of the
+     * mondrian server
+     */
+    public List<Execution> getRunningExecutions() throws Exception {
+        return getRunningExecutions(MondrianConnector.getMondrianServer());
+    }
+
+
+    /**
+     * Retrieves the running executions of a mondrian server, which need not
+     * be the current one
+     */
+    public static List<Execution> getRunningExecutions(MondrianServer server) throws Exception {
+
+        RolapResultShepherd shepherd = server.getResultShepherd();
+
+        Field tasksField = RolapResultShepherd.class.getDeclaredField("tasks");
+        tasksField.setAccessible(true);
+
+        List<Pair<FutureTask<Result>, Execution>> tasks = (List<Pair<FutureTask<Result>, Execution>>) tasksField.get(shepherd);
+
+        List<Execution> executions = new ArrayList<>();
+        for (Pair<FutureTask<Result>, Execution> task : tasks) {
+            executions.add(task.getValue());
+        }
+        return executions;
+    }
+
+
+    /**
+     * Cancels the execution with the given id and all sql queries that it
+     * is running on the database
+     */
+    public String kill(long executionId) throws Exception {
+
+        boolean found = false;
+        for (Execution execution : getRunningExecutions()) {
+            if (execution.getId() == executionId) {
+                execution.cancel();
+                found = true;
+            }
+        }
+
+        // also cancels queries that the execution left running, e.g. segment loads
+        int statements = RunningStatements.cancel(executionId);
+
+        if (!found && statements == 0) {
+            return "Execution " + executionId + " not found\n";
+        }
+        LOG.info("Killed execution " + executionId + ", canceled " + statements + " sql statements");
+        return "Killed execution " + executionId + ", canceled " + statements + " sql statements\n";
+    }
+}
@@ -1,17 +1,27 @@
 package com.projecta.mondrianserver.actions;
 
-import java.lang.reflect.Field;
 import java.util.List;
-import java.util.concurrent.FutureTask;
+import java.util.Map;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import com.projecta.mondrianserver.mondrian.MondrianConnector;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.projecta.mondrianserver.mondrian.CacheWarmer;
+import com.projecta.mondrianserver.mondrian.DiskSegmentCache;
+import com.projecta.mondrianserver.sql.ConcurrencyLimiter;
+import com.projecta.mondrianserver.sql.ConnectionPool;
+import com.projecta.mondrianserver.sql.GroupingSetsBatcher;
+import com.projecta.mondrianserver.sql.InFlightQueries;
+import com.projecta.mondrianserver.sql.ParallelSplit;
+import com.projecta.mondrianserver.sql.ResultCache;
+import com.projecta.mondrianserver.sql.RunningStatements;
+import com.projecta.mondrianserver.sql.SlowQueryLog;
+import com.projecta.mondrianserver.sql.SqlRewriter;
+import com.projecta.mondrianserver.sql.SqlStatistics;
+import com.projecta.mondrianserver.sql.StreamingFetch;
 
-import mondrian.olap.Result;
-import mondrian.rolap.RolapResultShepherd;
 import mondrian.server.Execution;
-import mondrian.util.Pair;
 
 /**
  * Retrieves some statistics, like memory usage and currently running queries
@@ -19,6 +29,9 @@ import mondrian.util.Pair;
 @Component
 public class StatisticsProvider {
 
+    @Autowired private ExecutionManager executionManager;
+    @Autowired private CacheWarmer      cacheWarmer;
+
     private static final double MB = 1024.0 * 1024.0;
 
 
@@ -35,32 +48,66 @@ public class StatisticsProvider {
         result.append("Total Memory: " + Math.round(runtime.totalMemory() / MB) + " MB, ");
         result.append("Max Memory: "   + Math.round(runtime.maxMemory() / MB) + " MB\n\n");
 
-
-        RolapResultShepherd shepherd = MondrianConnector.getMondrianServer().getResultShepherd();
-
-        Field tasksField = RolapResultShepherd.class.getDeclaredField("tasks");
-        tasksField.setAccessible(true);
-
-        List<Pair<FutureTask<Result>, Execution>> tasks = (List<Pair<FutureTask<Result>, Execution>>) tasksField.get(shepherd);
-
-        for (Pair<FutureTask<Result>, Execution> task : tasks) {
+        result.append(SqlRewriter.getStatistics());
+        result.append(ConnectionPool.getStatistics());
+        result.append(ResultCache.getStatistics());
+        result.append(InFlightQueries.getStatistics());
+        result.append(ConcurrencyLimiter.getStatistics());
+        result.append(StreamingFetch.getStatistics());
+        result.append(ParallelSplit.getStatistics());
+        result.append(GroupingSetsBatcher.getStatistics());
+        result.append(SlowQueryLog.getStatistics());
+        result.append(DiskSegmentCache.getStatistics());
+        result.append(cacheWarmer.getStatistics() + "\n");
+
+
+        List<Execution> executions = executionManager.getRunningExecutions();
+        for (Execution execution : executions) {
             try {
-                Execution execution = task.getValue();
                 result.append("Task " + execution.getId() + ":\n" + execution.getMondrianStatement().getQuery());
-                result.append("\nExecution time: " + formatDuration(execution.getElapsedMillis()) + "\n\n");
+                result.append("\nExecution time: " + formatDuration(execution.getElapsedMillis()) + "\n");
+                result.append("Running sql queries: " + RunningStatements.getCount(execution.getId()) + "\n\n");
             }
             catch (Exception ex) {
                 // nothing to do here
             }
         }
 
-        if (tasks.isEmpty()) {
+        if (executions.isEmpty()) {
             result.append("No tasks are executing at the moment");
         }
         return result.toString();
     }
 
 
+    /**
+     * Returns the sql statistics of the most expensive query fingerprints as
+     * JSON
+     */
+    public String getSqlStatistics(int limit) throws Exception {
+        return new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(SqlStatistics.getStatistics(limit));
+    }
+
+
+    /**
+     * Returns the most recent slow queries with their query plans as JSON
+     */
+    public String getSlowSqlStatistics() throws Exception {
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<Map<String, Object>> captures = SlowQueryLog.getCaptures();
+
+        // embed the plans as JSON instead of strings
+        for (Map<String, Object> capture : captures) {
+            String plan = (String) capture.get("plan");
+            if (plan != null) {
+                capture.put("plan", objectMapper.readTree(plan));
+            }
+        }
+        return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(captures);
+    }
+
+
     /** Formats durations in a readable format */
     private String formatDuration(long duration) {
         long minutes = duration / 60000;
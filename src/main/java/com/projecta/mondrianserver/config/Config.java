@@ -89,6 +89,28 @@ public class Config implements ServletContextAware {
     }
 
 
+    /**
+     * Retrieves the integer property with the given name. If the property is
+     * not set, the default value is used.
+     */
+    public int getIntProperty(String key, int defaultValue) {
+
+        String value = properties.get(key);
+        return StringUtils.isBlank(value) ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+
+    /**
+     * Retrieves the boolean property with the given name. If the property is
+     * not set, the default value is used.
+     */
+    public boolean getBooleanProperty(String key, boolean defaultValue) {
+
+        String value = properties.get(key);
+        return StringUtils.isBlank(value) ? defaultValue : StringUtils.equalsIgnoreCase(value.trim(), "true");
+    }
+
+
     /**
      * Retrieves the property with the given name. If the property is not set,
      * this will cause an exception
@@ -0,0 +1,474 @@
+package com.projecta.mondrianserver.mondrian;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Flushes the caches of the tables and members that the ETL reports as
+ * changed, either with a PostgreSQL notification on the channel
+ * "invalidation.channel" or with a row in the load log table
+ * "invalidation.pollTable" (with the columns id and payload).
+ *
+ * A payload is either a fact table with optional members, separated by
+ * semicolons:
+ *
+ * <pre>
+ * notify mondrian, 'public.sales;[Time].[2024].[10]:[Time].[2024].[12]'
+ * </pre>
+ *
+ * or a json object with the arrays "tables", "cubes" and "members". Changes
+ * that arrive within "invalidation.debounceMillis" of each other are
+ * combined, and each changed table or cube is flushed with its own members
+ * with {@link MondrianConnector#flushRegion}. A table that changed without
+ * members is flushed completely.
+ *
+ * The id of the last processed row of the load log table is kept in
+ * "invalidation.stateFile", so that rows that were logged while the server
+ * was down are processed after a restart (the segments of the
+ * {@link DiskSegmentCache} survive it).
+ */
+public class CacheInvalidationListener {
+
+    // a flush is delayed by further changes at most this long
+    private static final long MAX_DELAY_MILLIS = 30000;
+    private static final long RECONNECT_MILLIS = 10000;
+
+    private final MondrianConnector connector;
+    private final String            databaseUrl;
+    private final String            channel;
+    private final String            pollTable;
+    private final long              pollMillis;
+    private final long              debounceMillis;
+    private final File              stateFile;
+
+    private volatile boolean running;
+    private Thread           thread;
+    private long             lastId  = -1;
+    private long             savedId = -1;
+
+    // changed tables and cubes that were not flushed yet, with their members
+    private final Map<String, Change> changes = new LinkedHashMap<>();
+    private long                      firstChange;
+    private long                      lastChange;
+    private long                      retryTime;
+
+    private static final Logger LOG = Logger.getLogger(CacheInvalidationListener.class);
+
+
+    CacheInvalidationListener(MondrianConnector connector, Config config) {
+
+        this.connector      = connector;
+        this.databaseUrl    = config.getRequiredProperty("databaseUrl");
+        this.channel        = StringUtils.trimToNull(config.getProperty("invalidation.channel"));
+        this.pollTable      = StringUtils.trimToNull(config.getProperty("invalidation.pollTable"));
+        this.pollMillis     = config.getIntProperty("invalidation.pollSeconds", 5) * 1000L;
+        this.debounceMillis = config.getIntProperty("invalidation.debounceMillis", 2000);
+
+        // by default the state is kept with the segments that it belongs to
+        String state = StringUtils.trimToNull(config.getProperty("invalidation.stateFile"));
+        String segmentDirectory = StringUtils.trimToNull(config.getProperty("segmentCache.directory"));
+        this.stateFile = state != null ? new File(state)
+                       : segmentDirectory != null ? new File(segmentDirectory, "invalidation.lastId") : null;
+    }
+
+
+    /**
+     * Whether a channel or a load log table is configured
+     */
+    boolean isEnabled() {
+        return channel != null || pollTable != null;
+    }
+
+
+    /**
+     * Starts listening in a background thread
+     */
+    synchronized void start() {
+
+        if (!isEnabled() || thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::run, "CacheInvalidationListener");
+        thread.setDaemon(true);
+        thread.start();
+        LOG.info("Listening for cache invalidations" + (channel != null ? " on channel " + channel : "")
+                + (pollTable != null ? " in table " + pollTable : ""));
+    }
+
+
+    /**
+     * Stops the background thread
+     */
+    synchronized void stop() {
+
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+
+    /**
+     * Receives changes until stopped, reconnecting after errors
+     */
+    private void run() {
+
+        while (running) {
+            // the proxied driver, so that the connection is set up like all others
+            try (Connection con = DriverManager.getConnection(databaseUrl)) {
+                listen(con);
+            }
+            catch (SQLException | RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                LOG.warn("Cache invalidation listener failed, reconnecting: " + e.getMessage());
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                }
+                catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+
+    private void listen(Connection con) throws SQLException {
+
+        PGConnection pgConnection = con.unwrap(PGConnection.class);
+        try {
+            if (channel != null) {
+                try (Statement stmt = con.createStatement()) {
+                    stmt.execute("listen \"" + channel.replace("\"", "\"\"") + "\"");
+                }
+            }
+            if (pollTable != null && lastId < 0) {
+                lastId = readLastId();
+                if (lastId < 0) {
+                    lastId = getLastId(con);
+                }
+                else {
+                    LOG.info("Processing the rows of " + pollTable + " after id " + lastId);
+                }
+                savedId = lastId;
+            }
+
+            while (running) {
+                long wait = pollMillis;
+                synchronized (this) {
+                    if (lastChange > 0) {
+                        wait = Math.max(1, Math.min(wait, getFlushTime() - System.currentTimeMillis()));
+                    }
+                }
+
+                if (channel != null) {
+                    PGNotification[] notifications = pgConnection.getNotifications((int) wait);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            addChange(notification.getParameter());
+                        }
+                    }
+                }
+                else {
+                    try {
+                        Thread.sleep(wait);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (pollTable != null) {
+                    poll(con);
+                }
+                flushIfDue();
+            }
+        }
+        finally {
+            // the connection may go back to the connection pool
+            if (channel != null && !con.isClosed()) {
+                try (Statement stmt = con.createStatement()) {
+                    stmt.execute("unlisten *");
+                }
+                catch (SQLException e) {
+                    // nothing to do here
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Reads the id of the last processed row from the state file, or returns
+     * -1 if there is none
+     */
+    private long readLastId() {
+
+        if (stateFile == null || !stateFile.exists()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(FileUtils.readFileToString(stateFile, StandardCharsets.UTF_8).trim());
+        }
+        catch (IOException | NumberFormatException e) {
+            LOG.warn("Could not read the last processed id from " + stateFile + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+
+    /**
+     * Writes the id of the last processed row to the state file, once the
+     * changes up to it are flushed
+     */
+    private void saveLastId() {
+
+        if (stateFile == null || lastId == savedId) {
+            return;
+        }
+        try {
+            File temp = new File(stateFile.getPath() + ".tmp");
+            FileUtils.writeStringToFile(temp, Long.toString(lastId), StandardCharsets.UTF_8);
+            if (!temp.renameTo(stateFile)) {
+                FileUtils.copyFile(temp, stateFile);
+                temp.delete();
+            }
+            savedId = lastId;
+        }
+        catch (IOException e) {
+            LOG.warn("Could not save the last processed id to " + stateFile + ": " + e.getMessage());
+        }
+    }
+
+
+    private long getLastId(Connection con) throws SQLException {
+
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("select coalesce(max(id), 0) from " + pollTable)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+
+    /**
+     * Reads the rows that were added to the load log table
+     */
+    private void poll(Connection con) throws SQLException {
+
+        try (PreparedStatement stmt = con.prepareStatement(
+                "select id, payload from " + pollTable + " where id > ? order by id")) {
+            stmt.setLong(1, lastId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    lastId = rs.getLong(1);
+                    addChange(rs.getString(2));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Adds the tables, cubes and members of a payload to the pending changes
+     */
+    private synchronized void addChange(String payload) {
+
+        if (StringUtils.isBlank(payload)) {
+            return;
+        }
+        Set<String> tables  = new LinkedHashSet<>();
+        Set<String> cubes   = new LinkedHashSet<>();
+        Set<String> members = new LinkedHashSet<>();
+        try {
+            if (payload.trim().startsWith("{")) {
+                JsonNode json = new ObjectMapper().readTree(payload);
+                addAll(json.get("tables"), tables);
+                addAll(json.get("cubes"), cubes);
+                addAll(json.get("members"), members);
+            }
+            else {
+                String[] parts = payload.split(";");
+                if (!parts[0].trim().isEmpty()) {
+                    tables.add(parts[0].trim());
+                }
+                for (int i = 1; i < parts.length; i++) {
+                    if (!parts[i].trim().isEmpty()) {
+                        members.add(parts[i].trim());
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            LOG.warn("Invalid cache invalidation payload: " + payload);
+            return;
+        }
+
+        // members alone would flush all cubes
+        if (tables.isEmpty() && cubes.isEmpty()) {
+            if (!members.isEmpty()) {
+                LOG.warn("Ignored cache invalidation payload without tables or cubes: " + payload);
+            }
+            return;
+        }
+        for (String table : tables) {
+            Change change = new Change(null, table);
+            changes.computeIfAbsent(change.getKey(), k -> change).add(members);
+        }
+        for (String cube : cubes) {
+            Change change = new Change(cube, null);
+            changes.computeIfAbsent(change.getKey(), k -> change).add(members);
+        }
+
+        long now = System.currentTimeMillis();
+        if (firstChange == 0) {
+            firstChange = now;
+        }
+        lastChange = now;
+    }
+
+
+    private static void addAll(JsonNode array, Set<String> values) {
+        if (array != null) {
+            for (JsonNode value : array) {
+                values.add(value.asText());
+            }
+        }
+    }
+
+
+    /**
+     * The pending changes are flushed when no further change arrived for
+     * the debounce time, but not later than MAX_DELAY_MILLIS after the first
+     */
+    private long getFlushTime() {
+        return Math.max(retryTime, Math.min(lastChange + debounceMillis, firstChange + MAX_DELAY_MILLIS));
+    }
+
+
+    private void flushIfDue() {
+
+        List<Change> flushChanges;
+        synchronized (this) {
+            if (lastChange == 0) {
+                // rows without changes are processed as well
+                saveLastId();
+                return;
+            }
+            if (System.currentTimeMillis() < getFlushTime()) {
+                return;
+            }
+            flushChanges = new ArrayList<>(changes.values());
+            changes.clear();
+            firstChange = 0;
+            lastChange  = 0;
+        }
+
+        // the members of one table must not restrict the flush of another one
+        List<Change> failed = new ArrayList<>();
+        for (Change change : flushChanges) {
+            String description = change.toString();
+            try {
+                LOG.info("Flushed caches for changes of " + description + ":\n" + connector.flushRegion(
+                        change.cube != null ? Collections.singletonList(change.cube) : Collections.emptyList(),
+                        new ArrayList<>(change.members),
+                        change.table != null ? Collections.singletonList(change.table) : Collections.emptyList()));
+            }
+            catch (RuntimeException e) {
+                LOG.error("Failed to flush caches for changes of " + description + ", retrying later", e);
+                failed.add(change);
+            }
+        }
+
+        if (failed.isEmpty()) {
+            retryTime = 0;
+            saveLastId();
+            return;
+        }
+
+        // failed changes stay pending, and the state file is not advanced
+        // past them, so that they are also retried after a restart
+        synchronized (this) {
+            for (Change change : failed) {
+                Change pending = changes.get(change.getKey());
+                if (pending == null) {
+                    changes.put(change.getKey(), change);
+                }
+                else {
+                    pending.add(change.complete ? Collections.emptySet() : change.members);
+                }
+            }
+            long now = System.currentTimeMillis();
+            firstChange = firstChange == 0 ? now : firstChange;
+            lastChange  = Math.max(lastChange, now);
+            retryTime   = now + RECONNECT_MILLIS;
+        }
+    }
+
+
+    /**
+     * The pending changes of a table or a cube
+     */
+    private static class Change {
+
+        final String      cube;
+        final String      table;
+        final Set<String> members = new LinkedHashSet<>();
+        boolean           complete;
+
+        Change(String cube, String table) {
+            this.cube  = cube;
+            this.table = table;
+        }
+
+        String getKey() {
+            return cube != null ? "cube " + cube : "table " + table;
+        }
+
+        /**
+         * Adds the members of a change, no members flush the whole table or
+         * cube
+         */
+        void add(Set<String> changedMembers) {
+            if (changedMembers.isEmpty()) {
+                complete = true;
+                members.clear();
+            }
+            else if (!complete) {
+                members.addAll(changedMembers);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (cube != null ? cube : table) + (members.isEmpty() ? "" : " in " + String.join(", ", members));
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.projecta.mondrianserver.mondrian;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.olap4j.CellSet;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapStatement;
+import org.saiku.repository.IRepositoryObject;
+import org.saiku.repository.RepositoryFileObject;
+import org.saiku.repository.RepositoryFolderObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.saiku.SaikuDatasourceManager;
+
+import mondrian.olap.MondrianServer;
+
+/**
+ * Fills the caches of a mondrian server by running a set of mdx queries with
+ * a bounded number of threads: the saved Saiku queries, the queries in
+ * "warmup.mdxFile" and the most frequent queries of the
+ * {@link QueryRecorder}. Runs at startup, after schema reloads (on the new
+ * server, before it is switched to) and every "warmup.scheduleMinutes".
+ */
+@Component
+public class CacheWarmer {
+
+    @Autowired private Config                 config;
+    @Autowired private SaikuDatasourceManager datasourceManager;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "CacheWarmer-schedule");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // runs do not overlap, scheduled runs are skipped while another one is running
+    private final ReentrantLock runLock  = new ReentrantLock();
+    private final AtomicInteger runCount = new AtomicInteger();
+    private volatile Run        lastRun;
+
+    private static final List<String> SAIKU_FILE_TYPES = ImmutableList.of("saiku");
+
+    private static final Logger LOG = Logger.getLogger(CacheWarmer.class);
+
+
+    /**
+     * Schedules the warm-up after startup and the periodic warm-up, if
+     * configured
+     */
+    void start() {
+
+        if (config.getBooleanProperty("warmup.onStartup", false)) {
+            scheduler.execute(() -> runScheduled("startup"));
+        }
+        int minutes = config.getIntProperty("warmup.scheduleMinutes", 0);
+        if (minutes > 0) {
+            scheduler.scheduleWithFixedDelay(() -> runScheduled("schedule"), minutes, minutes, TimeUnit.MINUTES);
+        }
+    }
+
+
+    /**
+     * Stops the scheduled warm-ups and saves the recorded queries
+     */
+    void stop() {
+        scheduler.shutdownNow();
+        QueryRecorder.save();
+    }
+
+
+    /**
+     * Whether a new server is warmed up after a schema reload
+     */
+    boolean isEnabledAfterReload() {
+        return config.getBooleanProperty("warmup.afterReload", false);
+    }
+
+
+    private void runScheduled(String trigger) {
+
+        if (!runLock.tryLock()) {
+            LOG.info("Skipped " + trigger + " cache warm-up, another warm-up is running");
+            return;
+        }
+        try {
+            run(MondrianConnector.getMondrianServer(), trigger);
+        }
+        catch (Throwable e) {
+            LOG.error("Cache warm-up failed", e);
+        }
+        finally {
+            runLock.unlock();
+        }
+    }
+
+
+    /**
+     * Runs the warm-up queries on the given server, after a running warm-up
+     * is finished. Returns a summary of the run.
+     */
+    String warmUp(MondrianServer server, String trigger) {
+
+        runLock.lock();
+        try {
+            return run(server, trigger).getSummary();
+        }
+        finally {
+            runLock.unlock();
+        }
+    }
+
+
+    private Run run(MondrianServer server, String trigger) {
+
+        Run run = new Run(runCount.incrementAndGet(), trigger, collectQueries());
+        lastRun = run;
+        LOG.info("Starting " + trigger + " cache warm-up with " + run.queries.size() + " queries");
+
+        int threads = Math.max(1, config.getIntProperty("warmup.threads", 2));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "CacheWarmer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (WarmUpQuery query : run.queries) {
+                futures.add(executor.submit(() -> execute(server, query)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            LOG.error("Cache warm-up failed", e);
+        }
+        finally {
+            executor.shutdownNow();
+            run.endMillis = System.currentTimeMillis();
+        }
+
+        // the recorded queries are saved regularly this way
+        QueryRecorder.save();
+        LOG.info(run.getSummary());
+        return run;
+    }
+
+
+    private static void execute(MondrianServer server, WarmUpQuery query) {
+
+        long start = System.currentTimeMillis();
+        try (OlapConnection connection = server.getConnection(
+                    MondrianConnector.DEFAULT_DATASOURCE_NAME, MondrianConnector.DEFAULT_CATALOG_NAME, null);
+             OlapStatement statement = connection.createStatement()) {
+            // the cells are computed when the query is executed
+            CellSet cellSet = statement.executeOlapQuery(query.mdx);
+            cellSet.close();
+        }
+        catch (Exception e) {
+            query.error = StringUtils.defaultString(e.getMessage(), e.toString());
+        }
+        query.millis = System.currentTimeMillis() - start;
+    }
+
+
+    /**
+     * Collects the queries of all sources, without duplicates
+     */
+    private List<WarmUpQuery> collectQueries() {
+
+        Map<String, WarmUpQuery> queries = new LinkedHashMap<>();
+
+        if (config.getBooleanProperty("warmup.saikuQueries", true)) {
+            try {
+                collectSaikuQueries(datasourceManager.listFiles("", SAIKU_FILE_TYPES), queries);
+            }
+            catch (RuntimeException e) {
+                LOG.warn("Could not read the saved saiku queries: " + e.getMessage());
+            }
+        }
+
+        String mdxFile = StringUtils.trimToNull(config.getProperty("warmup.mdxFile"));
+        if (mdxFile != null) {
+            try {
+                // queries are separated by empty lines
+                String text = FileUtils.readFileToString(new File(mdxFile), StandardCharsets.UTF_8);
+                int index = 0;
+                for (String mdx : text.split("\\r?\\n\\s*\\r?\\n")) {
+                    add(queries, "mdx file #" + ++index, mdx);
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Could not read the warm-up queries from " + mdxFile + ": " + e.getMessage());
+            }
+        }
+
+        int index = 0;
+        for (String mdx : QueryRecorder.getTopQueries(config.getIntProperty("warmup.topQueries", 0))) {
+            add(queries, "recorded #" + ++index, mdx);
+        }
+
+        return new ArrayList<>(queries.values());
+    }
+
+
+    private void collectSaikuQueries(List<IRepositoryObject> files, Map<String, WarmUpQuery> queries) {
+
+        for (IRepositoryObject file : files) {
+            if (file instanceof RepositoryFolderObject) {
+                collectSaikuQueries(((RepositoryFolderObject) file).getRepoObjects(), queries);
+            }
+            else if (file instanceof RepositoryFileObject) {
+                String path = ((RepositoryFileObject) file).getPath();
+                try {
+                    JsonNode json = new ObjectMapper().readTree(datasourceManager.getFileData(path, null, null));
+                    String mdx = json.path("mdx").asText(null);
+
+                    // parameters are used with their saved values
+                    JsonNode parameters = json.path("parameters");
+                    for (Iterator<String> names = parameters.fieldNames(); mdx != null && names.hasNext();) {
+                        String name = names.next();
+                        mdx = mdx.replace("${" + name + "}", parameters.path(name).asText(""));
+                    }
+                    add(queries, path, mdx);
+                }
+                catch (IOException | RuntimeException e) {
+                    LOG.warn("Could not read the saiku query " + path + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    private static void add(Map<String, WarmUpQuery> queries, String source, String mdx) {
+        if (StringUtils.isNotBlank(mdx)) {
+            queries.putIfAbsent(QueryRecorder.normalize(mdx), new WarmUpQuery(source, mdx.trim()));
+        }
+    }
+
+
+    /**
+     * Describes the progress of the last warm-up and the time of each query
+     */
+    public String getStatistics() {
+
+        Run run = lastRun;
+        if (run == null) {
+            return "Cache warm-up: no run since startup\n";
+        }
+        StringBuilder text = new StringBuilder("Cache warm-up: " + run.getSummary() + "\n");
+
+        // the slowest queries first, those not finished yet at the end
+        List<WarmUpQuery> queries = new ArrayList<>(run.queries);
+        Collections.sort(queries, Comparator.comparingLong((WarmUpQuery q) -> q.millis).reversed());
+        for (WarmUpQuery query : queries) {
+            text.append(String.format("  %8s  %s%s%n", query.millis < 0 ? "-" : query.millis + " ms", query.source,
+                    query.error == null ? "" : " failed: " + StringUtils.abbreviate(query.error, 200)));
+        }
+        return text.toString();
+    }
+
+
+    /**
+     * A warm-up query and the time it took
+     */
+    private static class WarmUpQuery {
+
+        final String    source;
+        final String    mdx;
+        volatile long   millis = -1;
+        volatile String error;
+
+        WarmUpQuery(String source, String mdx) {
+            this.source = source;
+            this.mdx    = mdx;
+        }
+    }
+
+
+    /**
+     * Progress of a warm-up
+     */
+    private static class Run {
+
+        final int               id;
+        final String            trigger;
+        final List<WarmUpQuery> queries;
+        final long              startMillis = System.currentTimeMillis();
+        volatile long           endMillis;
+
+        Run(int id, String trigger, List<WarmUpQuery> queries) {
+            this.id      = id;
+            this.trigger = trigger;
+            this.queries = queries;
+        }
+
+        String getSummary() {
+
+            int done = 0;
+            int failed = 0;
+            for (WarmUpQuery query : queries) {
+                done   += query.millis >= 0 ? 1 : 0;
+                failed += query.error != null ? 1 : 0;
+            }
+            long end = endMillis > 0 ? endMillis : System.currentTimeMillis();
+            return "run " + id + " (" + trigger + ") " + (endMillis > 0 ? "finished" : "running")
+                    + " after " + (end - startMillis) + " ms, " + done + " of " + queries.size() + " queries, "
+                    + failed + " failed";
+        }
+    }
+}
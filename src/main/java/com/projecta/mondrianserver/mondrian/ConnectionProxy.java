@@ -3,6 +3,8 @@ package com.projecta.mondrianserver.mondrian;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 
@@ -53,29 +55,29 @@ public class ConnectionProxy implements InvocationHandler {
             con = connection;
         }
 
-        return method.invoke(con, args);
+        return QueryRecorder.wrapResult(method, args, method.invoke(con, args));
     }
 
 
     /**
-     * Closes all outstanding connections for every proxy instance
+     * Detaches the outstanding connections from the proxy instances, so that
+     * they connect to the current server on their next use. The detached
+     * connections are returned to be closed once their queries are finished.
      */
-    public static synchronized void closeAllConnections() {
+    public static synchronized List<OlapConnection> retireAllConnections() {
 
+        List<OlapConnection> connections = new ArrayList<>();
         for (ConnectionProxy proxy : instances.keySet()) {
             if (proxy != null) {
                 synchronized (proxy) {
-                    try {
-                        if (proxy.connection != null) {
-                            proxy.connection.close();
-                        }
-                    }
-                    catch (Throwable e) {
+                    if (proxy.connection != null) {
+                        connections.add(proxy.connection);
                     }
                     proxy.connection = null;
                 }
             }
         }
+        return connections;
     }
 
 }
@@ -0,0 +1,453 @@
+package com.projecta.mondrianserver.mondrian;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+
+import mondrian.spi.SegmentBody;
+import mondrian.spi.SegmentCache;
+import mondrian.spi.SegmentHeader;
+
+/**
+ * Implementation of mondrian's {@link SegmentCache} that keeps the cached
+ * segments as files in "segmentCache.directory", so that they survive a
+ * restart and can be shared by several servers on the same host. It is
+ * enabled by setting "mondrian.rolap.SegmentCache" to this class.
+ *
+ * Each segment is a file named after the unique id of its header, which
+ * includes the checksum of the schema, so segments of a changed schema are
+ * not used anymore. The files are read through memory mapping. When the
+ * files exceed "segmentCache.maxSizeMB", those that were not read for the
+ * longest time are removed. Segments written or removed by other servers
+ * are noticed every "segmentCache.scanSeconds".
+ */
+public class DiskSegmentCache implements SegmentCache {
+
+    private static volatile File    directory;
+    private static volatile long    maxBytes    = 1024L * 1024 * 1024;
+    private static volatile int     scanSeconds = 10;
+    private static volatile boolean keepOnReload;
+
+    private static final String SUFFIX = ".segment";
+
+    private static final AtomicLong hitCount      = new AtomicLong();
+    private static final AtomicLong missCount     = new AtomicLong();
+    private static final AtomicLong putCount      = new AtomicLong();
+    private static final AtomicLong evictionCount = new AtomicLong();
+
+    private static final ScheduledExecutorService SCANNER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "DiskSegmentCache-scan");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the segments in the directory, by file name
+    private final Map<String, Entry>         entries   = new HashMap<>();
+    private final List<SegmentCacheListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledFuture<?>         scan;
+
+    private static final Logger LOG = Logger.getLogger(DiskSegmentCache.class);
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        String dir   = StringUtils.trimToNull(config.getProperty("segmentCache.directory"));
+        directory    = dir == null ? null : new File(dir);
+        maxBytes     = config.getIntProperty("segmentCache.maxSizeMB", 1024) * 1024L * 1024L;
+        scanSeconds  = Math.max(1, config.getIntProperty("segmentCache.scanSeconds", 10));
+        keepOnReload = config.getBooleanProperty("segmentCache.keepOnReload", false);
+
+        if (directory != null) {
+            directory.mkdirs();
+        }
+    }
+
+
+    /**
+     * Removes all segments, unless "segmentCache.keepOnReload" is set. Used
+     * when the whole schema is reloaded, as the data may have changed.
+     */
+    public static void clearOnReload() {
+
+        File dir = directory;
+        if (dir == null || keepOnReload) {
+            return;
+        }
+        int count = 0;
+        for (File file : listSegmentFiles(dir)) {
+            if (file.delete()) {
+                count++;
+            }
+        }
+        LOG.info("Removed " + count + " segments from " + dir);
+    }
+
+
+    /**
+     * Instances are created by mondrian, one for each mondrian server
+     */
+    public DiskSegmentCache() {
+
+        if (directory == null) {
+            throw new IllegalStateException("segmentCache.directory is not set");
+        }
+        scan();
+        scan = SCANNER.scheduleWithFixedDelay(this::scan, scanSeconds, scanSeconds, TimeUnit.SECONDS);
+    }
+
+
+    @Override
+    public SegmentBody get(SegmentHeader header) {
+
+        File file = getFile(header);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             ObjectInputStream in = new ObjectInputStream(new BufferInputStream(
+                     channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())))) {
+
+            // the header comes first
+            in.readObject();
+            SegmentBody body = (SegmentBody) in.readObject();
+
+            // the modification time is the time of the last use for the eviction
+            file.setLastModified(System.currentTimeMillis());
+            hitCount.incrementAndGet();
+            return body;
+        }
+        catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // removed by another server, or written by an incompatible version
+            if (file.exists()) {
+                LOG.warn("Could not read segment " + file + ": " + e);
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+
+    @Override
+    public synchronized List<SegmentHeader> getSegmentHeaders() {
+
+        List<SegmentHeader> headers = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            headers.add(entry.header);
+        }
+        return headers;
+    }
+
+
+    @Override
+    public boolean put(SegmentHeader header, SegmentBody body) {
+
+        File file = getFile(header);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(header);
+                out.writeObject(body);
+            }
+            if (bytes.size() > maxBytes) {
+                return true;
+            }
+
+            // written under a temporary name, so that other servers never read a partial file
+            File temp = Files.createTempFile(directory.toPath(), file.getName(), ".tmp").toFile();
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this) {
+                entries.put(file.getName(), new Entry(header, bytes.size()));
+            }
+            putCount.incrementAndGet();
+            evict(file.getName());
+        }
+        catch (IOException e) {
+            // the segment is still in the memory cache of mondrian
+            LOG.warn("Could not write segment " + file + ": " + e);
+        }
+        return true;
+    }
+
+
+    @Override
+    public boolean remove(SegmentHeader header) {
+
+        File file = getFile(header);
+        synchronized (this) {
+            entries.remove(file.getName());
+        }
+        return file.delete();
+    }
+
+
+    @Override
+    public void tearDown() {
+        scan.cancel(false);
+        listeners.clear();
+    }
+
+
+    @Override
+    public void addListener(SegmentCacheListener listener) {
+        listeners.add(listener);
+    }
+
+
+    @Override
+    public void removeListener(SegmentCacheListener listener) {
+        listeners.remove(listener);
+    }
+
+
+    @Override
+    public boolean supportsRichIndex() {
+        return true;
+    }
+
+
+    private static File getFile(SegmentHeader header) {
+        return new File(directory, header.getUniqueID() + SUFFIX);
+    }
+
+
+    private static File[] listSegmentFiles(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        return files != null ? files : new File[0];
+    }
+
+
+    /**
+     * Reads the headers of new files in the directory and tells mondrian
+     * about the segments that other servers created or removed
+     */
+    private void scan() {
+
+        try {
+            Set<String> names = new HashSet<>();
+            List<SegmentHeader> created = new ArrayList<>();
+            List<SegmentHeader> deleted = new ArrayList<>();
+
+            for (File file : listSegmentFiles(directory)) {
+                names.add(file.getName());
+                synchronized (this) {
+                    if (entries.containsKey(file.getName())) {
+                        continue;
+                    }
+                }
+                SegmentHeader header = readHeader(file);
+                if (header != null) {
+                    synchronized (this) {
+                        if (entries.putIfAbsent(file.getName(), new Entry(header, file.length())) == null) {
+                            created.add(header);
+                        }
+                    }
+                }
+            }
+
+            synchronized (this) {
+                for (Map.Entry<String, Entry> entry : new ArrayList<>(entries.entrySet())) {
+                    if (!names.contains(entry.getKey()) && !new File(directory, entry.getKey()).exists()) {
+                        entries.remove(entry.getKey());
+                        deleted.add(entry.getValue().header);
+                    }
+                }
+            }
+
+            fireEvents(created, SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_CREATED);
+            fireEvents(deleted, SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_DELETED);
+        }
+        catch (RuntimeException e) {
+            LOG.warn("Failed to scan the segment cache directory", e);
+        }
+    }
+
+
+    private static SegmentHeader readHeader(File file) {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             ObjectInputStream in = new ObjectInputStream(new BufferInputStream(
+                     channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())))) {
+            return (SegmentHeader) in.readObject();
+        }
+        catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // removed in the meantime, or written by an incompatible version
+            return null;
+        }
+    }
+
+
+    /**
+     * Removes the least recently used segments while the files are larger
+     * than the limit, except for the segment that was just written
+     */
+    private void evict(String keep) {
+
+        List<SegmentHeader> evicted = new ArrayList<>();
+        synchronized (this) {
+            long total = 0;
+            for (Entry entry : entries.values()) {
+                total += entry.size;
+            }
+            if (total <= maxBytes) {
+                return;
+            }
+
+            Map<String, Long> lastUse = new HashMap<>();
+            for (String name : entries.keySet()) {
+                lastUse.put(name, new File(directory, name).lastModified());
+            }
+            List<String> names = new ArrayList<>(entries.keySet());
+            names.sort(Comparator.comparingLong(lastUse::get));
+
+            for (String name : names) {
+                if (total <= maxBytes) {
+                    break;
+                }
+                if (!name.equals(keep)) {
+                    Entry entry = entries.remove(name);
+                    new File(directory, name).delete();
+                    total -= entry.size;
+                    evicted.add(entry.header);
+                    evictionCount.incrementAndGet();
+                }
+            }
+        }
+
+        // mondrian still knows the evicted segments
+        fireEvents(evicted, SegmentCacheListener.SegmentCacheEvent.EventType.ENTRY_DELETED);
+    }
+
+
+    private void fireEvents(List<SegmentHeader> headers,
+                            SegmentCacheListener.SegmentCacheEvent.EventType type) {
+
+        for (SegmentHeader header : headers) {
+            SegmentCacheListener.SegmentCacheEvent event = new SegmentCacheListener.SegmentCacheEvent() {
+                @Override
+                public boolean isLocal() {
+                    return false;
+                }
+
+                @Override
+                public SegmentHeader getSource() {
+                    return header;
+                }
+
+                @Override
+                public EventType getEventType() {
+                    return type;
+                }
+            };
+            for (SegmentCacheListener listener : listeners) {
+                try {
+                    listener.handle(event);
+                }
+                catch (RuntimeException e) {
+                    LOG.warn("Segment cache listener failed", e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the statistics of the segment cache as text
+     */
+    public static String getStatistics() {
+
+        File dir = directory;
+        if (dir == null) {
+            return "Segment cache: disabled\n";
+        }
+        long bytes = 0;
+        File[] files = listSegmentFiles(dir);
+        for (File file : files) {
+            bytes += file.length();
+        }
+        return "Segment cache: " + files.length + " segments, " + bytes / (1024 * 1024) + " of "
+                + maxBytes / (1024 * 1024) + " MB, " + hitCount.get() + " hits, " + missCount.get() + " misses, "
+                + putCount.get() + " written, " + evictionCount.get() + " evicted\n";
+    }
+
+
+    /**
+     * A segment in the directory
+     */
+    private static class Entry {
+
+        final SegmentHeader header;
+        final long          size;
+
+        Entry(SegmentHeader header, long size) {
+            this.header = header;
+            this.size   = size;
+        }
+    }
+
+
+    /**
+     * Reads from a mapped file
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final MappedByteBuffer buffer;
+
+        BufferInputStream(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
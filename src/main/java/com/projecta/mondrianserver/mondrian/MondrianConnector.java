@@ -5,8 +5,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -17,20 +26,32 @@ import org.apache.log4j.Logger;
 import org.jdom.Element;
 import org.jdom.output.XMLOutputter;
 import org.olap4j.OlapConnection;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Hierarchy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 
+import com.projecta.mondrianserver.actions.ExecutionManager;
 import com.projecta.mondrianserver.config.Config;
 import com.projecta.mondrianserver.saiku.SaikuConnectionManager;
 import com.projecta.mondrianserver.security.CubeAccess;
 import com.projecta.mondrianserver.security.CubeAccessRole;
+import com.projecta.mondrianserver.sql.ConnectionPool;
+import com.projecta.mondrianserver.sql.ResultCache;
 import com.projecta.mondrianserver.sql.SqlProxy;
 import com.projecta.mondrianserver.sql.SqlRewriter;
 
+import mondrian.olap.CacheControl;
+import mondrian.olap.Dimension;
+import mondrian.olap.Member;
+import mondrian.olap.MondrianDef;
 import mondrian.olap.MondrianServer;
+import mondrian.olap.SchemaReader;
+import mondrian.olap.Util;
 import mondrian.rolap.RolapConnection;
+import mondrian.rolap.RolapCube;
 import mondrian.rolap.RolapUtil;
 import mondrian.server.StringRepositoryContentFinder;
 import mondrian.spi.impl.IdentityCatalogLocator;
@@ -46,12 +67,31 @@ public class MondrianConnector {
     @Autowired private Config                 config;
     @Autowired private SchemaProcessor        schemaProcessor;
     @Autowired private SaikuConnectionManager connectionManager;
-
-    private static MondrianServer server;
+    @Autowired private CacheWarmer            cacheWarmer;
+
+    private static volatile MondrianServer server;
+    private static volatile int            schemaGeneration;
+
+    // schema reloads run one after the other in the background
+    private final ExecutorService reloader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MondrianConnector-reload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService retirer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "MondrianConnector-retire");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private CacheInvalidationListener invalidationListener;
+
+    private final AtomicInteger reloadCount = new AtomicInteger();
+    private Reload              queuedReload;
+    private volatile Reload     lastReload;
 
     private static final String DEFAULT_JDBC_DRIVER    = "org.postgresql.Driver";
-    private static final String DEFAULT_DATASOURCE_NAME = "Mondrian";
-    private static final String DEFAULT_CATALOG_NAME    = "Mondrian";
+    static final String         DEFAULT_DATASOURCE_NAME = "Mondrian";
+    static final String         DEFAULT_CATALOG_NAME    = "Mondrian";
 
     private static final Logger LOG = Logger.getLogger(MondrianConnector.class);
 
@@ -66,17 +106,27 @@ public class MondrianConnector {
             return;
         }
 
-        schemaProcessor.readSchema();
+        int generation = schemaProcessor.readSchema();
         readMondrianProperties();
         configureLogLevels();
-        connectMondrianServer();
+        SqlProxy.configure(config);
+        QueryRecorder.configure(config);
+        DiskSegmentCache.configure(config);
+
+        server = createServer(generation);
+        schemaGeneration = generation;
+        SchemaProcessor.activate(generation);
+
+        invalidationListener = new CacheInvalidationListener(this, config);
+        invalidationListener.start();
+        cacheWarmer.start();
     }
 
 
     /**
-     * Initializes the mondrian server
+     * Creates a mondrian server that uses the given generation of the schema
      */
-    private synchronized void connectMondrianServer() {
+    private MondrianServer createServer(int generation) {
 
         // read config values
         String baseUrl = config.getProperty("baseUrl", "");
@@ -87,10 +137,6 @@ public class MondrianConnector {
         String databaseUrl = config.getRequiredProperty("databaseUrl");
         String databaseDriver = config.getProperty("databaseDriver", DEFAULT_JDBC_DRIVER);
 
-        // initialize the sql proxy
-        @SuppressWarnings( "unused" )
-        SqlProxy proxy = new SqlProxy();
-
         // generate xml DataSources configuration
         Element dataSources = new Element("DataSources");
         Element dataSource = new Element("DataSource");
@@ -102,7 +148,9 @@ public class MondrianConnector {
         dataSource.addContent(new Element("DataSourceInfo").setText(
                   "Provider=mondrian; " + "Locale=" + locale + "; "
                 + "DynamicSchemaProcessor=" + SchemaProcessor.class.getName() + "; "
+                + SchemaProcessor.GENERATION_PROPERTY + "=" + generation + "; "
                 + "UseContentChecksum=true; "
+                + (ConnectionPool.isEnabled() ? "PoolNeeded=false; " : "")
                 + "JdbcDrivers=" + databaseDriver + "; "
                 + "Jdbc=" + databaseUrl));
 
@@ -117,16 +165,9 @@ public class MondrianConnector {
 
         String dataSourcesXml = new XMLOutputter().outputString(dataSources);
 
-        // initialize the server
-        MondrianServer existingServer = server;
-        server = MondrianServer.createWithRepository(
+        return MondrianServer.createWithRepository(
                 new StringRepositoryContentFinder(dataSourcesXml),
                 new IdentityCatalogLocator());
-
-        // shutdown any existing server
-        if (existingServer != null) {
-            existingServer.shutdown();
-        }
     }
 
 
@@ -173,6 +214,12 @@ public class MondrianConnector {
      */
     @PreDestroy
     public void destroy() {
+        if (invalidationListener != null) {
+            invalidationListener.stop();
+        }
+        cacheWarmer.stop();
+        reloader.shutdownNow();
+        retirer.shutdownNow();
         server.shutdown();
     }
 
@@ -201,9 +248,11 @@ public class MondrianConnector {
             RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
             CubeAccess cubeAccess = (CubeAccess) requestAttributes.getAttribute(
                     CubeAccess.REQUEST_ATTR, RequestAttributes.SCOPE_REQUEST);
+            String userName = (String) requestAttributes.getAttribute(
+                    CubeAccess.USER_ATTR, RequestAttributes.SCOPE_REQUEST);
 
             RolapConnection rolapConnection = connection.unwrap(RolapConnection.class);
-            rolapConnection.setRole(new CubeAccessRole(cubeAccess));
+            rolapConnection.setRole(new CubeAccessRole(cubeAccess, userName));
         }
         catch (Throwable e) {
             LOG.error("Error in applyPermissions: " + e.getMessage(), e);
@@ -212,30 +261,292 @@ public class MondrianConnector {
 
 
     /**
-     * Flush all the caches and reload the mondrian schema
+     * Flush all the caches and reload the mondrian schema. The new server is
+     * created and initialized in the background and replaces the current one
+     * when it is ready, while running queries finish on the old one. Returns
+     * the progress of the reload, after it finished if wait is set.
+     */
+    public String flushCaches(boolean wait) {
+
+        Reload reload;
+        synchronized (this) {
+            // a reload that has not started yet also covers this request
+            reload = queuedReload;
+            if (reload == null || reload.started) {
+                reload = new Reload(reloadCount.incrementAndGet());
+                queuedReload = reload;
+                Reload submitted = reload;
+                reloader.execute(() -> reload(submitted));
+            }
+        }
+
+        if (wait) {
+            reload.done.join();
+        }
+        return getReloadStatus();
+    }
+
+
+    /**
+     * Flushes the cached cells of the given cubes, of the cubes on the given
+     * fact tables (schema.table), or of all cubes if neither is given. If
+     * members are given (by unique name, or as range "[lower]:[upper]"),
+     * only their cells and those of their descendants are flushed, and their
+     * children are reloaded. The
+     * cached sql results and dimension tables of the affected tables are
+     * removed as well, before the cells are flushed, so that segments are not
+     * loaded again from outdated results, and once more afterwards.
+     */
+    public String flushRegion(List<String> cubeNames, List<String> memberNames, List<String> tableNames) {
+
+        StringBuilder response = new StringBuilder();
+        Set<String> tables = new HashSet<>();
+        for (String table : tableNames) {
+            tables.add(table.trim().toLowerCase());
+        }
+        Set<String> flushedTables = new HashSet<>(tables);
+
+        try (OlapConnection olapConnection = server.getConnection(DEFAULT_DATASOURCE_NAME, DEFAULT_CATALOG_NAME, null)) {
+            RolapConnection connection = olapConnection.unwrap(RolapConnection.class);
+            CacheControl cacheControl = connection.getCacheControl(null);
+
+            for (mondrian.olap.Cube cube : connection.getSchema().getCubes()) {
+                String factTable = getFactTable((RolapCube) cube);
+                if (factTable != null && isFlushed((RolapCube) cube, cubeNames, tables)) {
+                    flushedTables.add(factTable);
+                }
+            }
+            SqlRewriter.clearCache(flushedTables);
+            int removed = ResultCache.invalidate(flushedTables);
+
+            for (mondrian.olap.Cube cube : connection.getSchema().getCubes()) {
+                // virtual cubes use the cells of their base cubes
+                RolapCube rolapCube = (RolapCube) cube;
+                if (!isFlushed(rolapCube, cubeNames, tables)) {
+                    continue;
+                }
+
+                // members of the same dimension are combined, different dimensions are crossjoined
+                SchemaReader reader = rolapCube.getSchemaReader().withLocus();
+                Map<Dimension, List<CacheControl.CellRegion>> memberRegions = new LinkedHashMap<>();
+                List<String> found = new ArrayList<>();
+                for (String memberName : memberNames) {
+                    // either a single member or a range of members "[lower]:[upper]"
+                    int separator = memberName.indexOf("]:[");
+                    Member member = reader.getMemberByUniqueName(Util.parseIdentifier(
+                            separator < 0 ? memberName : memberName.substring(0, separator + 1)), false);
+                    Member upper = separator < 0 ? member : reader.getMemberByUniqueName(
+                            Util.parseIdentifier(memberName.substring(separator + 2)), false);
+                    if (member == null || upper == null) {
+                        continue;
+                    }
+
+                    memberRegions.computeIfAbsent(member.getDimension(), d -> new ArrayList<>())
+                            .add(upper == member ? cacheControl.createMemberRegion(member, true)
+                                 : cacheControl.createMemberRegion(true, member, true, upper, true));
+                    cacheControl.flush(upper == member ? cacheControl.createMemberSet(member, true)
+                                       : cacheControl.createMemberSet(true, member, true, upper, true));
+                    found.add(upper == member ? member.getUniqueName()
+                              : member.getUniqueName() + ":" + upper.getUniqueName());
+
+                    // load the children again, which may include new members
+                    List<Member> parents = new ArrayList<>();
+                    if (upper == member) {
+                        parents.add(member);
+                    }
+                    else {
+                        reader.getMemberRange(member.getLevel(), member, upper, parents);
+                    }
+                    reader.getMemberChildren(parents);
+                }
+
+                List<CacheControl.CellRegion> regions = new ArrayList<>();
+                regions.add(cacheControl.createMeasuresRegion(cube));
+                for (List<CacheControl.CellRegion> dimensionRegions : memberRegions.values()) {
+                    regions.add(dimensionRegions.size() == 1 ? dimensionRegions.get(0)
+                              : cacheControl.createUnionRegion(dimensionRegions.toArray(new CacheControl.CellRegion[0])));
+                }
+                cacheControl.flush(regions.size() == 1 ? regions.get(0)
+                                 : cacheControl.createCrossjoinRegion(regions.toArray(new CacheControl.CellRegion[0])));
+
+                response.append("flushed cube " + cube.getName()
+                        + (found.isEmpty() ? "" : " for " + String.join(", ", found)) + "\n");
+            }
+
+            // results of segment loads that ran while the cells were flushed
+            SqlRewriter.clearCache(flushedTables);
+            removed += ResultCache.invalidate(flushedTables);
+            response.append("removed " + removed + " cached sql results\n");
+        }
+        catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return response.toString();
+    }
+
+
+    /**
+     * Whether the cells of a cube are flushed for the given cubes and fact
+     * tables. Virtual cubes use the cells of their base cubes.
+     */
+    private static boolean isFlushed(RolapCube cube, List<String> cubeNames, Set<String> tables) {
+        return !cube.isVirtual() && (cubeNames.isEmpty() && tables.isEmpty()
+                || cubeNames.contains(cube.getName()) || tables.contains(getFactTable(cube)));
+    }
+
+
+    /**
+     * Retrieves the fact table of a cube as schema.table in lower case, or
+     * null if it is not a table
+     */
+    private static String getFactTable(RolapCube cube) {
+
+        if (!(cube.getFact() instanceof MondrianDef.Table)) {
+            return null;
+        }
+        MondrianDef.Table table = (MondrianDef.Table) cube.getFact();
+        return (StringUtils.defaultIfEmpty(table.schema, "public") + "." + table.name).toLowerCase();
+    }
+
+
+    /**
+     * Describes the progress of the last reload and of a queued one
+     */
+    public synchronized String getReloadStatus() {
+
+        StringBuilder status = new StringBuilder();
+        if (lastReload != null) {
+            status.append(lastReload);
+        }
+        if (queuedReload != null && !queuedReload.started) {
+            status.append("reload " + queuedReload.id + ": queued\n");
+        }
+        return status.length() > 0 ? status.toString() : "no reload since startup\n";
+    }
+
+
+    /**
+     * Reads the schema, initializes a new server with it and swaps it with
+     * the current server
      */
-    public String flushCaches() {
+    private void reload(Reload reload) {
+
+        synchronized (this) {
+            reload.started = true;
+            lastReload = reload;
+        }
+        reload.startMillis = System.currentTimeMillis();
 
-        // reload the schema (the SchemaProcessor caches this as well)
-        String response = "";
         try {
-            schemaProcessor.readSchema();
-            response += "processed new schema definition\n";
+            // the caches of the sql layer may contain data from before the reload
+            SqlRewriter.clearCache();
+            ResultCache.clear();
+            SqlProxy.configure(config);
+            QueryRecorder.configure(config);
+            DiskSegmentCache.configure(config);
+            DiskSegmentCache.clearOnReload();
+
+            int generation = schemaProcessor.readSchema();
+            reload.step("processed new schema definition");
+
+            MondrianServer newServer = createServer(generation);
+            try {
+                warmUp(newServer, reload);
+            }
+            catch (Throwable e) {
+                newServer.shutdown();
+                SchemaProcessor.discard(generation);
+                throw e;
+            }
 
-            connectMondrianServer();
-            response += "reinitialized mondrian server\n";
+            MondrianServer oldServer;
+            int oldGeneration;
+            synchronized (MondrianConnector.class) {
+                oldServer = server;
+                oldGeneration = schemaGeneration;
+                server = newServer;
+                schemaGeneration = generation;
+            }
+            SchemaProcessor.activate(generation);
+            reload.step("switched to new mondrian server");
 
-            ConnectionProxy.closeAllConnections();
+            List<OlapConnection> oldConnections = ConnectionProxy.retireAllConnections();
             connectionManager.refreshAllConnections();
-            response += "reinitialized saiku connections\n";
+            reload.step("reinitialized saiku connections");
 
-            SqlRewriter.clearCache();
+            retirer.execute(() -> retire(oldServer, oldGeneration, oldConnections));
+        }
+        catch (Throwable e) {
+            LOG.error("Failed to reload the mondrian schema", e);
+            reload.step("failed: " + e);
+        }
+        finally {
+            reload.endMillis = System.currentTimeMillis();
+            reload.done.complete(null);
+        }
+    }
+
+
+    /**
+     * Loads the schema on a new server, and if "reload.warmup" is set also
+     * the root members of all hierarchies. With "warmup.afterReload" the
+     * warm-up queries are run on it as well.
+     */
+    private void warmUp(MondrianServer newServer, Reload reload) throws Exception {
+
+        // connecting loads the schema
+        try (OlapConnection connection = newServer.getConnection(DEFAULT_DATASOURCE_NAME, DEFAULT_CATALOG_NAME, null)) {
+            reload.step("loaded schema on new mondrian server");
+
+            if (config.getBooleanProperty("reload.warmup", false)) {
+                int count = 0;
+                for (Cube cube : connection.getOlapSchema().getCubes()) {
+                    for (Hierarchy hierarchy : cube.getHierarchies()) {
+                        hierarchy.getRootMembers();
+                        count++;
+                    }
+                }
+                reload.step("loaded root members of " + count + " hierarchies");
+            }
+        }
+
+        if (cacheWarmer.isEnabledAfterReload()) {
+            reload.step("cache warm-up " + cacheWarmer.warmUp(newServer, "reload " + reload.id));
+        }
+    }
+
+
+    /**
+     * Shuts down a replaced server once its running executions are finished,
+     * or after "reload.drainTimeoutSeconds"
+     */
+    private void retire(MondrianServer oldServer, int oldGeneration, List<OlapConnection> connections) {
+
+        long deadline = System.currentTimeMillis() + config.getIntProperty("reload.drainTimeoutSeconds", 300) * 1000L;
+        try {
+            while (System.currentTimeMillis() < deadline
+                    && !ExecutionManager.getRunningExecutions(oldServer).isEmpty()) {
+                Thread.sleep(1000);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         catch (Exception e) {
-            throw new RuntimeException(e);
+            LOG.warn("Could not read the running executions of the old mondrian server", e);
         }
 
-        return response;
+        for (OlapConnection connection : connections) {
+            try {
+                connection.close();
+            }
+            catch (Throwable e) {
+                // nothing to do here
+            }
+        }
+        oldServer.shutdown();
+        SchemaProcessor.discard(oldGeneration);
+        LOG.info("Retired mondrian server with schema generation " + oldGeneration);
     }
 
 
@@ -246,4 +557,36 @@ public class MondrianConnector {
         return server;
     }
 
-}
\ No newline at end of file
+
+    /**
+     * Progress of a schema reload
+     */
+    private static class Reload {
+
+        final int                     id;
+        final List<String>            steps = new ArrayList<>();
+        final CompletableFuture<Void> done  = new CompletableFuture<>();
+        boolean                       started;
+        volatile long                 startMillis;
+        volatile long                 endMillis;
+
+        Reload(int id) {
+            this.id = id;
+        }
+
+        synchronized void step(String step) {
+            steps.add(step);
+        }
+
+        @Override
+        public synchronized String toString() {
+            long end = endMillis > 0 ? endMillis : System.currentTimeMillis();
+            StringBuilder text = new StringBuilder("reload " + id + ": " + (endMillis > 0 ? "finished" : "running")
+                    + " after " + (end - startMillis) + " ms\n");
+            for (String step : steps) {
+                text.append(step).append("\n");
+            }
+            return text.toString();
+        }
+    }
+}
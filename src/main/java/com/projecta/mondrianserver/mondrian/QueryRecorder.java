@@ -0,0 +1,228 @@
+package com.projecta.mondrianserver.mondrian;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapStatement;
+import org.olap4j.PreparedOlapStatement;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Counts how often each mdx query is executed by Saiku or over xmla, so that
+ * the most frequent ones can be replayed by the {@link CacheWarmer}. The
+ * counts are kept in "warmup.recordFile", if set, to survive restarts.
+ */
+public class QueryRecorder {
+
+    private static volatile boolean enabled;
+    private static volatile int     maxQueries = 1000;
+    private static volatile File    recordFile;
+
+    private static final Map<String, LongAdder> COUNTS = new ConcurrentHashMap<>();
+
+    private static final Logger LOG = Logger.getLogger(QueryRecorder.class);
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties, and the
+     * recorded queries from the record file on the first call
+     */
+    public static synchronized void configure(Config config) {
+
+        enabled    = config.getIntProperty("warmup.topQueries", 0) > 0;
+        maxQueries = config.getIntProperty("warmup.maxRecordedQueries", 1000);
+
+        String fileName = StringUtils.trimToNull(config.getProperty("warmup.recordFile"));
+        File file = fileName == null ? null : new File(fileName);
+        if (file != null && !file.equals(recordFile) && file.exists()) {
+            load(file);
+        }
+        recordFile = file;
+    }
+
+
+    /**
+     * Records an execution of a query
+     */
+    public static void record(String mdx) {
+
+        if (!enabled || StringUtils.isBlank(mdx)) {
+            return;
+        }
+        String query = normalize(mdx);
+        LongAdder count = COUNTS.get(query);
+        if (count == null) {
+            if (COUNTS.size() >= maxQueries) {
+                evict();
+            }
+            count = COUNTS.computeIfAbsent(query, q -> new LongAdder());
+        }
+        count.increment();
+    }
+
+
+    /**
+     * Retrieves the most frequent queries, the most frequent first
+     */
+    public static List<String> getTopQueries(int limit) {
+
+        List<Map.Entry<String, LongAdder>> entries = new ArrayList<>(COUNTS.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed());
+
+        List<String> queries = new ArrayList<>();
+        for (Map.Entry<String, LongAdder> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            queries.add(entry.getKey());
+        }
+        return queries;
+    }
+
+
+    /**
+     * Writes the recorded queries to the record file
+     */
+    public static void save() {
+
+        File file = recordFile;
+        if (file == null || !enabled) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LongAdder> entry : COUNTS.entrySet()) {
+            text.append(entry.getValue().sum()).append('\t').append(entry.getKey()).append('\n');
+        }
+        try {
+            File temp = new File(file.getPath() + ".tmp");
+            FileUtils.writeStringToFile(temp, text.toString(), StandardCharsets.UTF_8);
+            if (!temp.renameTo(file)) {
+                FileUtils.copyFile(temp, file);
+                temp.delete();
+            }
+        }
+        catch (IOException e) {
+            LOG.warn("Could not save the recorded queries to " + file + ": " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Wraps a connection, so that the queries of its statements are recorded
+     */
+    public static OlapConnection wrap(OlapConnection connection) {
+        if (!enabled) {
+            return connection;
+        }
+        return (OlapConnection) Proxy.newProxyInstance(OlapConnection.class.getClassLoader(),
+                new Class<?>[] { OlapConnection.class }, new Handler(connection));
+    }
+
+
+    /**
+     * Wraps the statements created by a connection, and records the queries
+     * that are executed with them. Returns the other results unchanged.
+     */
+    static Object wrapResult(Method method, Object[] args, Object result) {
+
+        if (!enabled) {
+            return result;
+        }
+        if (result instanceof PreparedOlapStatement) {
+            // the query of a prepared statement is given when it is prepared
+            if (args != null && args.length > 0 && args[0] instanceof String) {
+                record((String) args[0]);
+            }
+            return result;
+        }
+        if (result instanceof OlapStatement && method.getName().equals("createStatement")) {
+            return Proxy.newProxyInstance(OlapStatement.class.getClassLoader(),
+                    new Class<?>[] { OlapStatement.class }, new Handler(result));
+        }
+        if (method.getDeclaringClass() != Object.class && args != null && args.length > 0
+                && args[0] instanceof String && method.getName().startsWith("execute")) {
+            record((String) args[0]);
+        }
+        return result;
+    }
+
+
+    private static void load(File file) {
+
+        try {
+            for (String line : FileUtils.readLines(file, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    LongAdder count = COUNTS.computeIfAbsent(line.substring(tab + 1), q -> new LongAdder());
+                    count.add(Long.parseLong(line.substring(0, tab)));
+                }
+            }
+            LOG.info("Read " + COUNTS.size() + " recorded queries from " + file);
+        }
+        catch (IOException | NumberFormatException e) {
+            LOG.warn("Could not read the recorded queries from " + file + ": " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Removes the less frequent half of the queries to make room for new ones
+     */
+    private static synchronized void evict() {
+
+        if (COUNTS.size() < maxQueries) {
+            return;
+        }
+        List<Map.Entry<String, LongAdder>> entries = new ArrayList<>(COUNTS.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().sum()));
+        for (Map.Entry<String, LongAdder> entry : entries.subList(0, entries.size() / 2)) {
+            COUNTS.remove(entry.getKey());
+        }
+    }
+
+
+    /**
+     * Collapses whitespace, so that each query takes one line and formatting
+     * differences do not count as different queries
+     */
+    static String normalize(String mdx) {
+        return mdx.trim().replaceAll("\\s+", " ");
+    }
+
+
+    /**
+     * Forwards all calls to the wrapped connection or statement
+     */
+    private static class Handler implements InvocationHandler {
+
+        private final Object target;
+
+        Handler(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            try {
+                Object result = method.invoke(target, args);
+                return wrapResult(method, args, result);
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
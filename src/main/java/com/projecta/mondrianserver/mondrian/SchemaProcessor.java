@@ -2,6 +2,10 @@
 package com.projecta.mondrianserver.mondrian;
 
 import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -11,23 +15,41 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.ApproximateDistinctCountRule;
+import com.projecta.mondrianserver.sql.SqlRewriter;
 
 import mondrian.olap.Util;
 import mondrian.spi.DynamicSchemaProcessor;
 
 /**
  * Schema processor that replaces different currencies in the mondrian schema,
- * depending on the configuration in the cubes.properties
+ * depending on the configuration in the cubes.properties, marks the measures
+ * with approximate distinct counts and passes the measure datatypes to the
+ * SqlRewriter
  */
 @Component
 public class SchemaProcessor implements DynamicSchemaProcessor {
 
-    private static String schemaXML;
+    // processed schemas by generation, each mondrian server uses its own
+    private static final Map<Integer, Generation> GENERATIONS = new ConcurrentHashMap<>();
+    private static final AtomicInteger lastGeneration = new AtomicInteger();
+
+    /** connect string property with the schema generation of a server */
+    public static final String GENERATION_PROPERTY = "SchemaGeneration";
+
+    private static final String APPROXIMATE_ANNOTATION = "approximateDistinctCount";
+
+    private static final Logger LOG = Logger.getLogger(SchemaProcessor.class);
 
     @Autowired
     private Config config;
@@ -35,9 +57,11 @@ public class SchemaProcessor implements DynamicSchemaProcessor {
     /**
      * (a) read schema, (b) replace currency placeholder with the on currency
      * symbol specified in cubes properties (c) store the processed schema for
-     * later access
+     * later access. Returns the generation number of the schema, which a
+     * server passes in its connect string and activates with
+     * {@link #activate} once it is used.
      */
-    public void readSchema() throws Exception {
+    public int readSchema() throws Exception {
 
         String mondrianSchemaFile = config.getRequiredProperty("mondrianSchemaFile");
 
@@ -49,6 +73,8 @@ public class SchemaProcessor implements DynamicSchemaProcessor {
         // parse the schema.xml
         DocumentBuilder documentBuilder = factory.newDocumentBuilder();
         Document doc = documentBuilder.parse(mondrianSchemaFile);
+        markApproximateDistinctCounts(doc);
+        Map<String, String> measureDatatypes = getMeasureDatatypes(doc);
 
         // generate a string again
         Transformer transformer = TransformerFactory.newInstance().newTransformer();
@@ -60,12 +86,185 @@ public class SchemaProcessor implements DynamicSchemaProcessor {
 
         // add a timestamp to the XML to force a schema reload even if nothing
         // has changed
-        schemaXML = result.getWriter().toString() + "<!-- " + System.currentTimeMillis() + "-->";
+        String schemaXML = result.getWriter().toString() + "<!-- " + System.currentTimeMillis() + "-->";
+
+        int generation = lastGeneration.incrementAndGet();
+        GENERATIONS.put(generation, new Generation(schemaXML));
+        SqlRewriter.setMeasureDatatypes(generation, measureDatatypes);
+        return generation;
+    }
+
+
+    /**
+     * Makes the measure datatypes of a schema generation the default of the
+     * SqlRewriter, when the server that uses it starts to answer queries.
+     * Queries of Mondrian servers use the datatypes of their own generation.
+     */
+    public static void activate(int generation) {
+        SqlRewriter.activateMeasureDatatypes(generation);
+    }
+
+
+    /**
+     * Releases a schema generation that is no longer used by any server
+     */
+    public static void discard(int generation) {
+        GENERATIONS.remove(generation);
+        SqlRewriter.removeMeasureDatatypes(generation);
+    }
+
+
+    /**
+     * Replaces the column of distinct count measures that have the annotation
+     * "approximateDistinctCount" (on the measure or on its cube) by a measure
+     * expression with a marker, which the SqlRewriter calculates approximately
+     */
+    private void markApproximateDistinctCounts(Document doc) {
+
+        int count = 0;
+        NodeList cubes = doc.getElementsByTagName("Cube");
+        for (int i = 0; i < cubes.getLength(); i++) {
+            Element cube = (Element) cubes.item(i);
+            Element table = getChild(cube, "Table");
+            if (table == null) {
+                continue;
+            }
+            String tableAlias = StringUtils.defaultIfEmpty(table.getAttribute("alias"), table.getAttribute("name"));
+            String cubeAnnotation = getAnnotation(cube, APPROXIMATE_ANNOTATION);
+
+            for (Node node = cube.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (!(node instanceof Element) || !"Measure".equals(node.getNodeName())) {
+                    continue;
+                }
+                Element measure = (Element) node;
+                String annotation = getAnnotation(measure, APPROXIMATE_ANNOTATION);
+                if (!"true".equalsIgnoreCase(annotation != null ? annotation : cubeAnnotation)
+                        || !"distinct-count".equals(measure.getAttribute("aggregator"))
+                        || StringUtils.isEmpty(measure.getAttribute("column"))) {
+                    continue;
+                }
+
+                Element sql = doc.createElement("SQL");
+                sql.setAttribute("dialect", "generic");
+                sql.setTextContent(ApproximateDistinctCountRule.MARKER + " \"" + tableAlias + "\".\""
+                        + measure.getAttribute("column") + "\"");
+                Element expression = doc.createElement("MeasureExpression");
+                expression.appendChild(sql);
+
+                // the expression follows the annotations
+                Node position = measure.getFirstChild();
+                while (position != null && !(position instanceof Element
+                        && !"Annotations".equals(position.getNodeName()))) {
+                    position = position.getNextSibling();
+                }
+                measure.insertBefore(expression, position);
+                measure.removeAttribute("column");
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            LOG.info("Using approximate distinct counts for " + count + " measures");
+        }
+    }
+
+
+    /**
+     * Collects the datatypes of the measures that aggregate a column of the
+     * fact table, by schema, table, column and aggregator
+     */
+    private Map<String, String> getMeasureDatatypes(Document doc) {
+
+        Map<String, String> datatypes = new HashMap<>();
+        NodeList cubes = doc.getElementsByTagName("Cube");
+        for (int i = 0; i < cubes.getLength(); i++) {
+            Element cube = (Element) cubes.item(i);
+            Element table = getChild(cube, "Table");
+            if (table == null) {
+                continue;
+            }
+
+            for (Node node = cube.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (!(node instanceof Element) || !"Measure".equals(node.getNodeName())) {
+                    continue;
+                }
+                Element measure = (Element) node;
+                String column = measure.getAttribute("column");
+                String aggregator = measure.getAttribute("aggregator");
+                if (StringUtils.isEmpty(column)) {
+                    continue;
+                }
+
+                // mondrian uses Integer for counts and Numeric for everything else
+                String datatype = measure.getAttribute("datatype");
+                if (StringUtils.isEmpty(datatype)) {
+                    datatype = aggregator.equals("count") || aggregator.equals("distinct-count") ? "Integer" : "Numeric";
+                }
+
+                String key = SqlRewriter.getMeasureKey(table.getAttribute("schema"), table.getAttribute("name"),
+                        column, aggregator);
+                // if measures disagree, the column is not cast
+                String previous = datatypes.put(key, datatype);
+                if (previous != null && !previous.equals(datatype)) {
+                    datatypes.put(key, "mixed");
+                }
+            }
+        }
+        return datatypes;
+    }
+
+
+    /**
+     * Retrieves the value of an annotation of a schema element
+     */
+    private static String getAnnotation(Element element, String name) {
+
+        Element annotations = getChild(element, "Annotations");
+        if (annotations == null) {
+            return null;
+        }
+        for (Node node = annotations.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && "Annotation".equals(node.getNodeName())
+                    && name.equals(((Element) node).getAttribute("name"))) {
+                return node.getTextContent().trim();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Retrieves the first direct child element with the given name
+     */
+    private static Element getChild(Element element, String name) {
+
+        for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && name.equals(node.getNodeName())) {
+                return (Element) node;
+            }
+        }
+        return null;
     }
 
 
     @Override
     public String processSchema(String schemaUrl, Util.PropertyList connectInfo) throws Exception {
-        return schemaXML;
+
+        String generation = connectInfo.get(GENERATION_PROPERTY);
+        Generation schema = GENERATIONS.get(generation != null ? Integer.parseInt(generation) : lastGeneration.get());
+        return schema != null ? schema.schemaXML : GENERATIONS.get(lastGeneration.get()).schemaXML;
+    }
+
+
+    /**
+     * A processed schema
+     */
+    private static class Generation {
+
+        final String schemaXML;
+
+        Generation(String schemaXML) {
+            this.schemaXML = schemaXML;
+        }
     }
 }
@@ -94,6 +94,7 @@ public class SaikuSessionService implements ISessionService {
         }
 
         String userName = StringUtils.defaultString(request.getHeader(SAIKU_USER_HEADER));
+        request.setAttribute(CubeAccess.USER_ATTR, userName);
 
         // check the cache if we already have a session for this user
         Map<String, Object> session = null;
@@ -11,6 +11,7 @@ public class CubeAccess {
     private Set<String> cubes;
 
     public static final String REQUEST_ATTR = "cubeAccess";
+    public static final String USER_ATTR    = "cubeAccessUser";
 
 
     public boolean isAllowed() {
@@ -18,13 +18,28 @@ import mondrian.olap.Schema;
 public class CubeAccessRole implements Role {
 
     private CubeAccess cubeAccess;
+    private String     userName;
 
 
     public CubeAccessRole(CubeAccess cubeAccess) {
+        this(cubeAccess, null);
+    }
+
+    public CubeAccessRole(CubeAccess cubeAccess, String userName) {
         this.cubeAccess = cubeAccess;
+        this.userName   = userName;
+    }
+
+
+    /**
+     * Name of the user that the connection belongs to, if known
+     */
+    public String getUserName() {
+        return userName;
     }
 
 
+
     @Override
     public boolean canAccess(OlapElement olapElement) {
 
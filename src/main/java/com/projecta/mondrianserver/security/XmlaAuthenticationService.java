@@ -94,6 +94,7 @@ public class XmlaAuthenticationService {
             userName = StringUtils.substringBefore(decoded, ":");
             password = StringUtils.substringAfter(decoded, ":");
         }
+        request.setAttribute(CubeAccess.USER_ATTR, userName);
 
         // check if we want to use fixed username and password
         if (xmlaAuthorizationUrl == null) {
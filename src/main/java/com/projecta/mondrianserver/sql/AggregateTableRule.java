@@ -0,0 +1,394 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+import com.projecta.mondrianserver.sql.SqlRewriter.QueryType;
+
+/**
+ * Routes segment loads to a smaller materialized view or summary table of the
+ * fact table, if the view contains all columns and measures that the query
+ * needs. Unlike the aggregate tables of Mondrian, the views need no naming
+ * conventions or schema changes, they are registered in the
+ * mondrian-server.properties:
+ *
+ * <pre>
+ * sqlRewrite.aggregateTable.sales_by_month.view     = public.sales_by_month
+ * sqlRewrite.aggregateTable.sales_by_month.fact     = public.sales
+ * sqlRewrite.aggregateTable.sales_by_month.columns  = month_id, product_id
+ * sqlRewrite.aggregateTable.sales_by_month.measures = sum(amount)=amount, count(*)=fact_count
+ * sqlRewrite.aggregateTable.sales_by_month.filters  = status = 'active'
+ * </pre>
+ *
+ * The columns are fact table columns that the view groups by, under the same
+ * name. The measures map aggregations of the fact table to the view column
+ * that holds their partial result, which is aggregated again: sums and counts
+ * are added up, minimums and maximums are compared. The filters are
+ * conditions on the fact table that the view was created with, separated by
+ * semicolons. Only queries that contain these conditions are routed.
+ *
+ * If several views cover a query, the one with the fewest rows (estimated by
+ * PostgreSQL) is used. Views without an estimate (never analyzed, or
+ * partitioned parents, whose own estimate is empty) are only used if no view
+ * with an estimate covers the query, and then the first registered one. Every
+ * routing is logged with the estimated row reduction.
+ */
+public class AggregateTableRule implements RewriteRule {
+
+    private static final String PREFIX = "sqlRewrite.aggregateTable.";
+
+    private static final int STATISTICS_TTL_MILLIS = 600000; // 10 minutes
+
+    private static final Pattern MEASURE_PATTERN   = Pattern.compile("(\\w+)\\(\\s*(\\*|\\w+)\\s*\\)\\s*=\\s*(\\w+)");
+    private static final Pattern FILTER_PATTERN    = Pattern.compile("(\\w+)\\s*(.+)", Pattern.DOTALL);
+    private static final Pattern COUNT_ALL_PATTERN = Pattern.compile("count\\(\\*\\) as \"(\\w+)\"(,?)");
+
+    // registered views by fact table (schema.table)
+    private volatile Map<String, List<AggregateTable>> tables = new HashMap<>();
+
+    // estimated row counts of tables and views by schema.table
+    private final Map<String, long[]> rowCounts = new ConcurrentHashMap<>();
+
+    private static final Logger LOG = Logger.getLogger(AggregateTableRule.class);
+
+
+    @Override
+    public String getName() {
+        return "aggregateTables";
+    }
+
+
+    @Override
+    public void configure(Config config) {
+
+        Set<String> names = new HashSet<>();
+        for (String key : config.getProperties().keySet()) {
+            if (key.startsWith(PREFIX) && key.endsWith(".view")) {
+                names.add(key.substring(PREFIX.length(), key.length() - ".view".length()));
+            }
+        }
+
+        Map<String, List<AggregateTable>> result = new HashMap<>();
+        for (String name : names) {
+            String view = config.getProperty(PREFIX + name + ".view");
+            String fact = config.getProperty(PREFIX + name + ".fact");
+            if (StringUtils.isBlank(view) || StringUtils.isBlank(fact)
+                    || view.indexOf('.') < 0 || fact.indexOf('.') < 0) {
+                LOG.error("Aggregate table " + name + " needs a view and a fact table as schema.table");
+                continue;
+            }
+
+            AggregateTable table = new AggregateTable(name, view.trim());
+            for (String column : StringUtils.split(config.getProperty(PREFIX + name + ".columns", ""), ", ")) {
+                table.columns.add(column);
+            }
+            for (String measure : StringUtils.split(config.getProperty(PREFIX + name + ".measures", ""), ',')) {
+                Matcher matcher = MEASURE_PATTERN.matcher(measure.trim());
+                if (!matcher.matches() || !isMergeable(matcher.group(1).toLowerCase())) {
+                    LOG.error("Invalid measure of aggregate table " + name + ": " + measure.trim());
+                    continue;
+                }
+                table.measures.put(matcher.group(1).toLowerCase() + "(" + matcher.group(2) + ")", matcher.group(3));
+            }
+            for (String filter : StringUtils.split(config.getProperty(PREFIX + name + ".filters", ""), ';')) {
+                Matcher matcher = FILTER_PATTERN.matcher(filter.trim());
+                if (matcher.matches()) {
+                    table.filters.add(new String[] { matcher.group(1), normalize(matcher.group(2)) });
+                }
+            }
+            result.computeIfAbsent(fact.trim().toLowerCase(), k -> new ArrayList<>()).add(table);
+        }
+        tables = result;
+        rowCounts.clear();
+    }
+
+
+    @Override
+    public boolean apply(SqlRewriter query, Connection con) {
+
+        if (tables.isEmpty() || query.getQueryType() != QueryType.SEGMENT_LOAD) {
+            return false;
+        }
+
+        // the fact table is the one that is aggregated
+        String factAlias = null;
+        for (SqlFragment fragment : query.getFragments()) {
+            if (fragment.getType() == FragmentType.SELECT_AGGREGATION) {
+                factAlias = fragment.getTableAlias();
+                break;
+            }
+        }
+        SqlFragment factTable = factAlias != null ? query.getTable(factAlias) : null;
+        if (factTable == null) {
+            return false;
+        }
+        String factName = factTable.getSchemaName() + "." + factTable.getTableName();
+        List<AggregateTable> candidates = tables.get(factName.toLowerCase());
+        if (candidates == null) {
+            return false;
+        }
+
+        // use the smallest view that covers the query, views with unknown size
+        // only if there is no other
+        AggregateTable best = null;
+        long bestRows = Long.MAX_VALUE;
+        for (AggregateTable candidate : candidates) {
+            if (candidate.covers(query, factAlias)) {
+                long rows = getRowCount(con, candidate.view);
+                if (best == null || rows >= 0 && rows < bestRows) {
+                    best = candidate;
+                    bestRows = rows < 0 ? Long.MAX_VALUE : rows;
+                }
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+
+        best.route(query, factTable);
+        if (LOG.isInfoEnabled()) {
+            long factRows = getRowCount(con, factName);
+            LOG.info("Routed segment load on " + factName + " to aggregate table " + best.name + " (" + best.view
+                    + "), estimated rows: " + formatRows(factRows) + " -> " + formatRows(bestRows)
+                    + (factRows > 0 && bestRows != Long.MAX_VALUE
+                       ? String.format(", reduction %.1f%%", 100.0 * (factRows - bestRows) / factRows) : ""));
+        }
+        return true;
+    }
+
+
+    /**
+     * Aggregations whose partial results can be aggregated again
+     */
+    private static boolean isMergeable(String function) {
+        return function.equals("sum") || function.equals("count") || function.equals("min") || function.equals("max");
+    }
+
+
+    private static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+
+    private static String formatRows(long rows) {
+        return rows < 0 || rows == Long.MAX_VALUE ? "unknown" : Long.toString(rows);
+    }
+
+
+    /**
+     * Retrieves the number of rows that PostgreSQL estimates for a table or
+     * materialized view, or -1 if it is not known. The estimate is missing
+     * for tables that were never analyzed and for partitioned tables, as it
+     * is only kept for their partitions.
+     */
+    private long getRowCount(Connection con, String table) {
+
+        long[] cached = rowCounts.get(table);
+        if (cached != null && cached[1] > System.currentTimeMillis()) {
+            return cached[0];
+        }
+
+        long rows = -1;
+        int separator = table.indexOf('.');
+        try (PreparedStatement stmt = con.prepareStatement("select c.reltuples::bigint from pg_class c "
+                + "join pg_namespace n on n.oid = c.relnamespace where n.nspname = ? and c.relname = ?")) {
+            stmt.setString(1, table.substring(0, separator));
+            stmt.setString(2, table.substring(separator + 1));
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    rows = rs.getLong(1);
+                }
+            }
+        }
+        catch (SQLException | RuntimeException e) {
+            LOG.warn("Could not read the row count of " + table + ": " + e.getMessage());
+        }
+
+        // tables that were never analyzed have no estimate
+        rows = rows > 0 ? rows : -1;
+        rowCounts.put(table, new long[] { rows, System.currentTimeMillis() + STATISTICS_TTL_MILLIS });
+        return rows;
+    }
+
+
+    /**
+     * A registered view with its columns, measures and filters
+     */
+    private static class AggregateTable {
+
+        private final String              name;
+        private final String              view;
+        private final Set<String>         columns  = new HashSet<>();
+        private final Map<String, String> measures = new LinkedHashMap<>();
+        private final List<String[]>      filters  = new ArrayList<>();
+
+
+        AggregateTable(String name, String view) {
+            this.name = name;
+            this.view = view;
+        }
+
+
+        /**
+         * Checks if every use of the fact table in the query can be answered
+         * from the view
+         */
+        boolean covers(SqlRewriter query, String factAlias) {
+
+            Pattern reference = Pattern.compile("\"" + Pattern.quote(factAlias) + "\"\\.\"(\\w+)\"");
+            Set<SqlFragment> filterConditions = getFilterConditions(query, factAlias);
+            if (filterConditions == null) {
+                return false;
+            }
+
+            FragmentType section = null;
+            for (SqlFragment fragment : query.getFragments()) {
+                FragmentType type = fragment.getType();
+                String text = fragment.getCurrentText().trim();
+                if (type == FragmentType.SELECT_KEWORD || type == FragmentType.FROM_KEWORD
+                        || type == FragmentType.WHERE_KEWORD || type == FragmentType.GROUP_BY_KEWORD
+                        || type == FragmentType.ORDER_BY_KEWORD) {
+                    section = type;
+                    continue;
+                }
+                if (filterConditions.contains(fragment)
+                        || type == FragmentType.TABLE && factAlias.equals(fragment.getTableAlias())) {
+                    continue;
+                }
+
+                if (section == FragmentType.SELECT_KEWORD) {
+                    if (type == FragmentType.SELECT_AGGREGATION) {
+                        if (!factAlias.equals(fragment.getTableAlias()) || getMeasure(fragment) == null
+                                && !isGroupingAggregation(fragment)) {
+                            return false;
+                        }
+                        continue;
+                    }
+                    Matcher countAll = COUNT_ALL_PATTERN.matcher(text);
+                    if (countAll.matches() ? !measures.containsKey("count(*)")
+                                           : type != FragmentType.SELECT_EXPRESSION && reference.matcher(text).find()) {
+                        // other expressions on fact columns might aggregate them
+                        return false;
+                    }
+                }
+
+                // everything else may only use the columns that the view groups by
+                Matcher matcher = reference.matcher(text);
+                while (matcher.find()) {
+                    if (!columns.contains(matcher.group(1))) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+
+        /**
+         * Replaces the fact table by the view and the aggregations by
+         * aggregations of the partial results
+         */
+        void route(SqlRewriter query, SqlFragment factTable) {
+
+            String factAlias = factTable.getTableAlias();
+            for (SqlFragment condition : getFilterConditions(query, factAlias)) {
+                query.removeFragment(condition);
+            }
+
+            for (SqlFragment fragment : query.getFragments()) {
+                String text = fragment.getCurrentText();
+                if (fragment.getType() == FragmentType.SELECT_AGGREGATION) {
+                    String column = getMeasure(fragment);
+                    if (column == null) {
+                        continue;
+                    }
+                    String factColumn = "\"" + factAlias + "\".\"" + fragment.getColumnName() + "\"";
+                    String viewColumn = "\"" + factAlias + "\".\"" + column + "\"";
+                    if (fragment.getAggFunction().equals("count(")) {
+                        text = text.replace("count(" + factColumn + ")", "cast(sum(" + viewColumn + ") as bigint)");
+                    }
+                    fragment.setNewText(text.replace(factColumn, viewColumn));
+                    fragment.setColumnName(column);
+                    continue;
+                }
+                Matcher countAll = COUNT_ALL_PATTERN.matcher(text.trim());
+                if (countAll.matches()) {
+                    fragment.setNewText("    cast(sum(\"" + factAlias + "\".\"" + measures.get("count(*)")
+                            + "\") as bigint) as \"" + countAll.group(1) + "\"" + countAll.group(2));
+                }
+            }
+
+            int separator = view.indexOf('.');
+            String schemaName = view.substring(0, separator);
+            String tableName = view.substring(separator + 1);
+            factTable.setNewText("    \"" + schemaName + "\".\"" + tableName + "\" as \"" + factAlias + "\""
+                    + (factTable.getCurrentText().trim().endsWith(",") ? "," : ""));
+            factTable.setSchemaName(schemaName);
+            factTable.setTableName(tableName);
+        }
+
+
+        /**
+         * Finds the conditions of the query that the view was created with,
+         * or returns null if one of them is missing
+         */
+        private Set<SqlFragment> getFilterConditions(SqlRewriter query, String factAlias) {
+
+            Set<SqlFragment> result = new HashSet<>();
+            for (String[] filter : filters) {
+                String condition = "\"" + factAlias + "\".\"" + filter[0] + "\" " + filter[1];
+                SqlFragment match = null;
+                for (SqlFragment fragment : query.getFragments()) {
+                    if (fragment.getType() == FragmentType.CONDITION
+                            && normalize(fragment.getCurrentText()).equals(condition)) {
+                        match = fragment;
+                        break;
+                    }
+                }
+                if (match == null) {
+                    return null;
+                }
+                result.add(match);
+            }
+            return result;
+        }
+
+
+        /**
+         * Returns the view column with the partial result of an aggregation,
+         * or null if the view does not contain it
+         */
+        private String getMeasure(SqlFragment fragment) {
+            String function = fragment.getAggFunction().replace("(", "").trim();
+            return measures.get(function + "(" + fragment.getColumnName() + ")");
+        }
+
+
+        /**
+         * Aggregations that have the same result on the grouped rows of the
+         * view as on the rows of the fact table
+         */
+        private boolean isGroupingAggregation(SqlFragment fragment) {
+            String function = fragment.getAggFunction();
+            return columns.contains(fragment.getColumnName())
+                    && (function.equals("min(") || function.equals("max(") || function.equals("count(distinct"));
+        }
+    }
+}
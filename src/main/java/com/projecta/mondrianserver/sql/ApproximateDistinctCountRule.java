@@ -0,0 +1,79 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+/**
+ * Replaces distinct counts of measures that are marked with the annotation
+ * "approximateDistinctCount" in the schema by an approximate function,
+ * hll_cardinality(hll_add_agg(hll_hash_any(...))) by default. The function can
+ * be changed with "sqlRewrite.approximateDistinct.template", where %s stands
+ * for the counted expression.
+ *
+ * The SchemaProcessor marks the expressions of these measures with
+ * {@link #MARKER}, so that they can be told apart from exact distinct counts
+ * on the same column. Without this rule, the marked measures are counted
+ * exactly.
+ */
+public class ApproximateDistinctCountRule implements RewriteRule {
+
+    /** comment in front of the counted expression of approximate measures */
+    public static final String MARKER = "/*approximate*/";
+
+    private static final String PREFIX = "count(distinct " + MARKER;
+
+    private volatile String template = "hll_cardinality(hll_add_agg(hll_hash_any(%s)))";
+
+
+    @Override
+    public String getName() {
+        return "approximateDistinct";
+    }
+
+
+    @Override
+    public void configure(Config config) {
+        template = config.getProperty("sqlRewrite.approximateDistinct.template", template);
+    }
+
+
+    @Override
+    public boolean apply(SqlRewriter query, Connection con) {
+
+        boolean modified = false;
+        for (SqlFragment fragment : query.getFragments()) {
+            if (fragment.getType() != FragmentType.SELECT_AGGREGATION) {
+                continue;
+            }
+            String text = fragment.getCurrentText();
+            int start = text.indexOf(PREFIX);
+            if (start < 0) {
+                continue;
+            }
+
+            // find the bracket that closes the count
+            int depth = 0;
+            int end = start + PREFIX.length();
+            for (; end < text.length(); end++) {
+                char c = text.charAt(end);
+                if (c == '(') {
+                    depth++;
+                }
+                else if (c == ')' && depth-- == 0) {
+                    break;
+                }
+            }
+            if (end >= text.length()) {
+                continue;
+            }
+
+            String expression = text.substring(start + PREFIX.length(), end).trim();
+            fragment.setNewText(text.substring(0, start) + template.replace("%s", expression)
+                    + text.substring(end + 1));
+            modified = true;
+        }
+        return modified;
+    }
+}
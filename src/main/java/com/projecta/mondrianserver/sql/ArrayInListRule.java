@@ -0,0 +1,107 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.util.List;
+
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+/**
+ * Replaces "in" conditions with at least "sqlRewrite.inListArrayThreshold"
+ * integer or string literals by a comparison with an array literal, e.g.
+ *
+ * <pre>
+ * "dim"."key" in (1, 2, 3, ...)
+ * </pre>
+ *
+ * becomes
+ *
+ * <pre>
+ * "dim"."key" = any('{1,2,3,...}')
+ * </pre>
+ *
+ * PostgreSQL then only has to parse and plan a single constant instead of one
+ * per value. The array literal is left untyped, so that it is read as an
+ * array of the column's type, as the values of the "in" list would be (e.g.
+ * for enum, date, uuid or char columns).
+ */
+public class ArrayInListRule implements RewriteRule {
+
+    private volatile int threshold = 100;
+
+
+    @Override
+    public String getName() {
+        return "inListArrays";
+    }
+
+
+    @Override
+    public void configure(Config config) {
+        threshold = config.getIntProperty("sqlRewrite.inListArrayThreshold", 100);
+    }
+
+
+    @Override
+    public boolean apply(SqlRewriter query, Connection con) {
+
+        if (threshold <= 0) {
+            return false;
+        }
+
+        boolean modified = false;
+        for (SqlFragment fragment : query.getFragments()) {
+            if (fragment.getType() != FragmentType.CONDITION) {
+                continue;
+            }
+            List<String> literals = SqlParser.getConditionLiterals(fragment.getCurrentText());
+            if (literals == null || literals.size() < threshold) {
+                continue;
+            }
+
+            String array = toArrayLiteral(literals);
+            if (array != null) {
+                fragment.setNewText("    \"" + fragment.getTableAlias() + "\".\"" + fragment.getColumnName()
+                        + "\" = any(" + array + ")");
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+
+    /**
+     * Converts integer or string literals to an untyped array literal,
+     * returns null for other literals
+     */
+    private static String toArrayLiteral(List<String> literals) {
+
+        boolean integer = true;
+        boolean string = true;
+        StringBuilder values = new StringBuilder();
+        for (String literal : literals) {
+            if (values.length() > 0) {
+                values.append(',');
+            }
+            if (literal.length() >= 2 && literal.startsWith("'") && literal.endsWith("'")) {
+                integer = false;
+                // the single quotes stay doubled, as the array is itself a string literal
+                String value = literal.substring(1, literal.length() - 1);
+                values.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            else {
+                string = false;
+                try {
+                    values.append(Long.parseLong(literal));
+                }
+                catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            if (!integer && !string) {
+                return null;
+            }
+        }
+        return "'{" + values + "}'";
+    }
+}
@@ -0,0 +1,393 @@
+package com.projecta.mondrianserver.sql;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A fully materialized query result that is stored column by column. Integer
+ * and floating point columns are kept in primitive arrays, all other values
+ * as objects.
+ *
+ * Instances are immutable once built and can be replayed any number of times
+ * and from multiple threads with a {@link CachedResultSet}.
+ */
+public class CachedResult {
+
+    // estimated memory usage per object value and per row
+    private static final int OBJECT_BYTES = 16;
+    private static final int ROW_BYTES    = 8;
+
+    final CachedResultSetMetaData metaData;
+    final Column[]                columns;
+    final int                     rowCount;
+    final long                    bytes;
+
+
+    private CachedResult(CachedResultSetMetaData metaData, Column[] columns, int rowCount, long bytes) {
+        this.metaData = metaData;
+        this.columns  = columns;
+        this.rowCount = rowCount;
+        this.bytes    = bytes;
+    }
+
+
+    /**
+     * Number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+
+    /**
+     * Estimated memory usage in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+
+    /**
+     * Collects the rows of a result set. Rows are added by the caller, so that
+     * a result can be recorded while it is being read by Mondrian.
+     */
+    public static class Builder {
+
+        private final CachedResultSetMetaData metaData;
+        private final Column[]                columns;
+        private final long                    maxBytes;
+        private int                           rowCount;
+        private long                          bytes;
+
+
+        /**
+         * Creates a builder for the columns of the given result set. The
+         * builder refuses further rows once maxBytes are exceeded.
+         */
+        public Builder(ResultSet resultSet, long maxBytes) throws SQLException {
+            this(new CachedResultSetMetaData(resultSet.getMetaData()), maxBytes);
+        }
+
+
+        /**
+         * Creates a builder for rows that are added as values
+         */
+        public Builder(CachedResultSetMetaData metaData, long maxBytes) throws SQLException {
+
+            this.metaData = metaData;
+            this.maxBytes = maxBytes;
+            this.columns  = new Column[metaData.getColumnCount()];
+
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Column.forType(metaData.getColumnType(i + 1));
+            }
+        }
+
+
+        /**
+         * Adds the current row of the result set. Returns false if the result
+         * became too large.
+         */
+        public boolean addRow(ResultSet resultSet) throws SQLException {
+            return addRow(resultSet, null);
+        }
+
+
+        /**
+         * Adds the current row of the result set, reading the columns marked
+         * in textColumns (indexed from 1, may be null) as text. Returns false
+         * if the result became too large.
+         */
+        public boolean addRow(ResultSet resultSet, boolean[] textColumns) throws SQLException {
+
+            long rowBytes = ROW_BYTES;
+            for (int i = 0; i < columns.length; i++) {
+                rowBytes += textColumns != null && textColumns[i + 1]
+                          ? columns[i].add(rowCount, resultSet.getString(i + 1))
+                          : columns[i].add(rowCount, resultSet, i + 1);
+            }
+            rowCount++;
+            bytes += rowBytes;
+            return bytes <= maxBytes;
+        }
+
+
+        /**
+         * Adds a row with one value per column. Returns false if the result
+         * became too large.
+         */
+        public boolean addRow(Object[] values) {
+
+            long rowBytes = ROW_BYTES;
+            for (int i = 0; i < columns.length; i++) {
+                rowBytes += columns[i].add(rowCount, values[i]);
+            }
+            rowCount++;
+            bytes += rowBytes;
+            return bytes <= maxBytes;
+        }
+
+
+        /**
+         * Creates the result from all rows added so far
+         */
+        public CachedResult build() {
+
+            for (Column column : columns) {
+                column.trim(rowCount);
+            }
+            return new CachedResult(metaData, columns, rowCount, bytes);
+        }
+    }
+
+
+    /**
+     * Storage for the values of a single column
+     */
+    abstract static class Column {
+
+        protected final BitSet nulls = new BitSet();
+
+
+        static Column forType(int sqlType) {
+            switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return new LongColumn(true);
+            case Types.BIGINT:
+                return new LongColumn(false);
+            case Types.REAL:
+                return new DoubleColumn(true);
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return new DoubleColumn(false);
+            default:
+                return new ObjectColumn();
+            }
+        }
+
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        /** Adds a value from the result set and returns its estimated size */
+        abstract long add(int row, ResultSet resultSet, int columnIndex) throws SQLException;
+
+        /** Adds a value and returns its estimated size */
+        abstract long add(int row, Object value);
+
+        /** Releases unused capacity */
+        abstract void trim(int rowCount);
+
+        abstract Object getObject(int row);
+
+        abstract long getLong(int row);
+
+        abstract double getDouble(int row);
+
+        String getString(int row) {
+            Object value = getObject(row);
+            return value == null ? null : value.toString();
+        }
+
+        BigDecimal getBigDecimal(int row) {
+            Object value = getObject(row);
+            return value == null ? null
+                 : value instanceof BigDecimal ? (BigDecimal) value
+                 : new BigDecimal(value.toString());
+        }
+    }
+
+
+    /**
+     * Column for integer values
+     */
+    static class LongColumn extends Column {
+
+        private final boolean integer;
+        private long[]        values = new long[16];
+
+        LongColumn(boolean integer) {
+            this.integer = integer;
+        }
+
+        @Override
+        long add(int row, ResultSet resultSet, int columnIndex) throws SQLException {
+            if (row == values.length) {
+                values = Arrays.copyOf(values, row * 2);
+            }
+            values[row] = resultSet.getLong(columnIndex);
+            if (resultSet.wasNull()) {
+                nulls.set(row);
+            }
+            return 8;
+        }
+
+        @Override
+        long add(int row, Object value) {
+            if (row == values.length) {
+                values = Arrays.copyOf(values, row * 2);
+            }
+            if (value == null) {
+                nulls.set(row);
+            }
+            else {
+                values[row] = ((Number) value).longValue();
+            }
+            return 8;
+        }
+
+        @Override
+        void trim(int rowCount) {
+            values = Arrays.copyOf(values, rowCount);
+        }
+
+        @Override
+        Object getObject(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            return integer ? (Object) Integer.valueOf((int) values[row]) : (Object) Long.valueOf(values[row]);
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+
+        @Override
+        BigDecimal getBigDecimal(int row) {
+            return isNull(row) ? null : BigDecimal.valueOf(values[row]);
+        }
+    }
+
+
+    /**
+     * Column for floating point values
+     */
+    static class DoubleColumn extends Column {
+
+        private final boolean real;
+        private double[]      values = new double[16];
+
+        DoubleColumn(boolean real) {
+            this.real = real;
+        }
+
+        @Override
+        long add(int row, ResultSet resultSet, int columnIndex) throws SQLException {
+            if (row == values.length) {
+                values = Arrays.copyOf(values, row * 2);
+            }
+            values[row] = resultSet.getDouble(columnIndex);
+            if (resultSet.wasNull()) {
+                nulls.set(row);
+            }
+            return 8;
+        }
+
+        @Override
+        long add(int row, Object value) {
+            if (row == values.length) {
+                values = Arrays.copyOf(values, row * 2);
+            }
+            if (value == null) {
+                nulls.set(row);
+            }
+            else {
+                values[row] = ((Number) value).doubleValue();
+            }
+            return 8;
+        }
+
+        @Override
+        void trim(int rowCount) {
+            values = Arrays.copyOf(values, rowCount);
+        }
+
+        @Override
+        Object getObject(int row) {
+            if (isNull(row)) {
+                return null;
+            }
+            return real ? (Object) Float.valueOf((float) values[row]) : (Object) Double.valueOf(values[row]);
+        }
+
+        @Override
+        long getLong(int row) {
+            return (long) values[row];
+        }
+
+        @Override
+        double getDouble(int row) {
+            return values[row];
+        }
+    }
+
+
+    /**
+     * Column for all other values
+     */
+    static class ObjectColumn extends Column {
+
+        private Object[] values = new Object[16];
+
+        @Override
+        long add(int row, ResultSet resultSet, int columnIndex) throws SQLException {
+            return add(row, resultSet.getObject(columnIndex));
+        }
+
+        @Override
+        long add(int row, Object value) {
+            if (row == values.length) {
+                values = Arrays.copyOf(values, row * 2);
+            }
+            values[row] = value;
+            if (value == null) {
+                nulls.set(row);
+                return 4;
+            }
+            return 4 + OBJECT_BYTES + (value instanceof String ? 2L * ((String) value).length()
+                                     : value instanceof BigDecimal ? OBJECT_BYTES * 2
+                                     : value instanceof byte[] ? ((byte[]) value).length
+                                     : OBJECT_BYTES);
+        }
+
+        @Override
+        void trim(int rowCount) {
+            values = Arrays.copyOf(values, rowCount);
+        }
+
+        @Override
+        Object getObject(int row) {
+            return values[row];
+        }
+
+        @Override
+        long getLong(int row) {
+            Object value = values[row];
+            return value == null ? 0
+                 : value instanceof Number ? ((Number) value).longValue()
+                 : value instanceof Boolean ? ((Boolean) value ? 1 : 0)
+                 : new BigDecimal(value.toString()).longValue();
+        }
+
+        @Override
+        double getDouble(int row) {
+            Object value = values[row];
+            return value == null ? 0
+                 : value instanceof Number ? ((Number) value).doubleValue()
+                 : Double.parseDouble(value.toString());
+        }
+    }
+}
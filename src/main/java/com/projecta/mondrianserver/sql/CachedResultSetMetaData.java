@@ -0,0 +1,243 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Copy of the column metadata of a result set, used for cached results
+ */
+public class CachedResultSetMetaData implements ResultSetMetaData {
+
+    private final String[]  labels;
+    private final String[]  names;
+    private final String[]  schemaNames;
+    private final String[]  tableNames;
+    private final String[]  catalogNames;
+    private final int[]     types;
+    private final String[]  typeNames;
+    private final String[]  classNames;
+    private final int[]     precisions;
+    private final int[]     scales;
+    private final int[]     displaySizes;
+    private final int[]     nullables;
+    private final boolean[] signed;
+
+
+    public CachedResultSetMetaData(ResultSetMetaData metaData) throws SQLException {
+
+        int count = metaData.getColumnCount();
+        labels       = new String[count];
+        names        = new String[count];
+        schemaNames  = new String[count];
+        tableNames   = new String[count];
+        catalogNames = new String[count];
+        types        = new int[count];
+        typeNames    = new String[count];
+        classNames   = new String[count];
+        precisions   = new int[count];
+        scales       = new int[count];
+        displaySizes = new int[count];
+        nullables    = new int[count];
+        signed       = new boolean[count];
+
+        for (int i = 0; i < count; i++) {
+            int column = i + 1;
+            labels[i]       = metaData.getColumnLabel(column);
+            names[i]        = metaData.getColumnName(column);
+            schemaNames[i]  = metaData.getSchemaName(column);
+            tableNames[i]   = metaData.getTableName(column);
+            catalogNames[i] = metaData.getCatalogName(column);
+            types[i]        = metaData.getColumnType(column);
+            typeNames[i]    = metaData.getColumnTypeName(column);
+            classNames[i]   = metaData.getColumnClassName(column);
+            precisions[i]   = metaData.getPrecision(column);
+            scales[i]       = metaData.getScale(column);
+            displaySizes[i] = metaData.getColumnDisplaySize(column);
+            nullables[i]    = metaData.isNullable(column);
+            signed[i]       = metaData.isSigned(column);
+        }
+    }
+
+
+    /**
+     * Copies some of the columns of other metadata under new labels, for
+     * results that consist of a part of another result
+     */
+    CachedResultSetMetaData(CachedResultSetMetaData metaData, int[] columns, String[] columnLabels) {
+
+        int count = columns.length;
+        labels       = columnLabels.clone();
+        names        = new String[count];
+        schemaNames  = new String[count];
+        tableNames   = new String[count];
+        catalogNames = new String[count];
+        types        = new int[count];
+        typeNames    = new String[count];
+        classNames   = new String[count];
+        precisions   = new int[count];
+        scales       = new int[count];
+        displaySizes = new int[count];
+        nullables    = new int[count];
+        signed       = new boolean[count];
+
+        for (int i = 0; i < count; i++) {
+            int source = columns[i] - 1;
+            names[i]        = columnLabels[i];
+            schemaNames[i]  = metaData.schemaNames[source];
+            tableNames[i]   = metaData.tableNames[source];
+            catalogNames[i] = metaData.catalogNames[source];
+            types[i]        = metaData.types[source];
+            typeNames[i]    = metaData.typeNames[source];
+            classNames[i]   = metaData.classNames[source];
+            precisions[i]   = metaData.precisions[source];
+            scales[i]       = metaData.scales[source];
+            displaySizes[i] = metaData.displaySizes[source];
+            nullables[i]    = metaData.nullables[source];
+            signed[i]       = metaData.signed[source];
+        }
+    }
+
+
+    /**
+     * Changes the type of a column, for results whose values are computed
+     * from those of the original result set
+     */
+    void setColumnType(int column, int type, String typeName, String className) {
+        types[column - 1]      = type;
+        typeNames[column - 1]  = typeName;
+        classNames[column - 1] = className;
+    }
+
+
+    /**
+     * Retrieves the index of the column with the given label
+     */
+    int findColumn(String columnLabel) throws SQLException {
+
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equalsIgnoreCase(columnLabel)) {
+                return i + 1;
+            }
+        }
+        throw new SQLException("The column name " + columnLabel + " was not found in this ResultSet.");
+    }
+
+
+    @Override
+    public int getColumnCount() throws SQLException {
+        return labels.length;
+    }
+
+    @Override
+    public boolean isAutoIncrement(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public boolean isCaseSensitive(int column) throws SQLException {
+        return true;
+    }
+
+    @Override
+    public boolean isSearchable(int column) throws SQLException {
+        return true;
+    }
+
+    @Override
+    public boolean isCurrency(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public int isNullable(int column) throws SQLException {
+        return nullables[column - 1];
+    }
+
+    @Override
+    public boolean isSigned(int column) throws SQLException {
+        return signed[column - 1];
+    }
+
+    @Override
+    public int getColumnDisplaySize(int column) throws SQLException {
+        return displaySizes[column - 1];
+    }
+
+    @Override
+    public String getColumnLabel(int column) throws SQLException {
+        return labels[column - 1];
+    }
+
+    @Override
+    public String getColumnName(int column) throws SQLException {
+        return names[column - 1];
+    }
+
+    @Override
+    public String getSchemaName(int column) throws SQLException {
+        return schemaNames[column - 1];
+    }
+
+    @Override
+    public int getPrecision(int column) throws SQLException {
+        return precisions[column - 1];
+    }
+
+    @Override
+    public int getScale(int column) throws SQLException {
+        return scales[column - 1];
+    }
+
+    @Override
+    public String getTableName(int column) throws SQLException {
+        return tableNames[column - 1];
+    }
+
+    @Override
+    public String getCatalogName(int column) throws SQLException {
+        return catalogNames[column - 1];
+    }
+
+    @Override
+    public int getColumnType(int column) throws SQLException {
+        return types[column - 1];
+    }
+
+    @Override
+    public String getColumnTypeName(int column) throws SQLException {
+        return typeNames[column - 1];
+    }
+
+    @Override
+    public boolean isReadOnly(int column) throws SQLException {
+        return true;
+    }
+
+    @Override
+    public boolean isWritable(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public boolean isDefinitelyWritable(int column) throws SQLException {
+        return false;
+    }
+
+    @Override
+    public String getColumnClassName(int column) throws SQLException {
+        return classNames[column - 1];
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Cannot unwrap to " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
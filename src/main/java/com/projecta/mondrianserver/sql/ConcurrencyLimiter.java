@@ -0,0 +1,203 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Limits the number of queries that run on the database at the same time when
+ * "concurrencyLimit.enabled" is set. The limit adapts to the observed latency:
+ * every query is compared with the fastest recent execution of the same
+ * {@link SqlFingerprint}. If queries become much slower than that, the
+ * database is considered overloaded and the limit is decreased
+ * multiplicatively. Otherwise it is increased by one for every window of
+ * completed queries in which the limit was used up.
+ *
+ * Queries above the limit wait for at most "concurrencyLimit.maxWaitSeconds".
+ */
+public class ConcurrencyLimiter {
+
+    // settings
+    private static volatile boolean enabled;
+    private static volatile int     minLimit         = 2;
+    private static volatile int     maxLimit         = 40;
+    private static volatile int     maxWaitSeconds   = 60;
+    private static volatile int     latencyTolerance = 200;
+
+    // the baseline latency grows slowly with every sample, so that it can recover
+    private static final double BASELINE_DRIFT = 1.01;
+    private static final double BACKOFF        = 0.75;
+    private static final double SMOOTHING      = 0.2;
+    private static final int    MAX_BASELINES  = 10000;
+
+    private static final Object LOCK = new Object();
+
+    // limiter state, guarded by LOCK
+    private static int     limit    = 10;
+    private static int     inFlight;
+    private static int     waiting;
+    private static int     windowCount;
+    private static double  gradient = 1.0;
+    private static boolean saturated;
+
+    // fastest recent latency in nanoseconds per query fingerprint
+    private static final Map<String, Double> BASELINES = new ConcurrentHashMap<>();
+
+    // statistics, guarded by LOCK
+    private static long acquiredCount;
+    private static long rejectedCount;
+    private static long waitTimeNanos;
+    private static long increaseCount;
+    private static long decreaseCount;
+
+    private static final Logger LOG = Logger.getLogger(ConcurrencyLimiter.class);
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        enabled          = config.getBooleanProperty("concurrencyLimit.enabled", false);
+        minLimit         = Math.max(1, config.getIntProperty("concurrencyLimit.minLimit", 2));
+        maxLimit         = Math.max(minLimit, config.getIntProperty("concurrencyLimit.maxLimit", 40));
+        maxWaitSeconds   = config.getIntProperty("concurrencyLimit.maxWaitSeconds", 60);
+        latencyTolerance = config.getIntProperty("concurrencyLimit.latencyTolerancePercent", 200);
+
+        int initialLimit = config.getIntProperty("concurrencyLimit.initialLimit", 10);
+        synchronized (LOCK) {
+            limit = Math.min(maxLimit, Math.max(minLimit, initialLimit));
+            LOCK.notifyAll();
+        }
+    }
+
+
+    /**
+     * Whether the number of concurrent queries is limited
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Waits until a query may be sent to the database
+     */
+    public static void acquire() throws SQLException {
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(maxWaitSeconds);
+
+        synchronized (LOCK) {
+            waiting++;
+            try {
+                while (inFlight >= limit) {
+                    saturated = true;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        rejectedCount++;
+                        throw new SQLException("Timeout while waiting for a free database query slot (current limit "
+                                + limit + ")");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(LOCK, remaining);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a free database query slot", e);
+            }
+            finally {
+                waiting--;
+            }
+
+            inFlight++;
+            if (inFlight >= limit) {
+                saturated = true;
+            }
+            acquiredCount++;
+            waitTimeNanos += System.nanoTime() - start;
+        }
+    }
+
+
+    /**
+     * Frees the slot of a query and adapts the limit to its latency. Failed
+     * queries only free their slot, as their latency says nothing about the
+     * load of the database.
+     */
+    public static void release(String fingerprint, long latencyNanos, boolean failed) {
+
+        double sample = 1.0;
+        if (!failed && latencyNanos > 0) {
+            Double baseline = BASELINES.get(fingerprint);
+            double updated = baseline == null ? latencyNanos : Math.min(latencyNanos, baseline * BASELINE_DRIFT);
+            if (BASELINES.size() >= MAX_BASELINES) {
+                BASELINES.clear();
+            }
+            BASELINES.put(fingerprint, updated);
+            sample = updated / latencyNanos;
+        }
+
+        synchronized (LOCK) {
+            inFlight--;
+            if (!failed) {
+                gradient = gradient * (1 - SMOOTHING) + sample * SMOOTHING;
+                if (++windowCount >= limit) {
+                    adjustLimit();
+                }
+            }
+            LOCK.notifyAll();
+        }
+    }
+
+
+    /**
+     * Adjusts the limit at the end of a window, must be called with the lock
+     * held
+     */
+    private static void adjustLimit() {
+
+        int previous = limit;
+        if (gradient * latencyTolerance < 100) {
+            // queries are much slower than usual, so the database is overloaded
+            limit = Math.max(minLimit, (int) (limit * BACKOFF));
+        }
+        else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+
+        if (limit < previous) {
+            decreaseCount++;
+            LOG.info("Decreased database concurrency limit to " + limit);
+        }
+        else if (limit > previous) {
+            increaseCount++;
+        }
+        windowCount = 0;
+        saturated = inFlight >= limit;
+    }
+
+
+    /**
+     * Returns the statistics as text
+     */
+    public static String getStatistics() {
+
+        if (!enabled) {
+            return "Concurrency limit: disabled\n";
+        }
+        synchronized (LOCK) {
+            return "Concurrency limit: " + limit + " (min " + minLimit + ", max " + maxLimit + "), "
+                    + inFlight + " running, " + waiting + " waiting, "
+                    + "avg wait: " + (acquiredCount == 0 ? 0 : waitTimeNanos / acquiredCount / 1000) + " us, "
+                    + "rejected: " + rejectedCount + ", "
+                    + "increased: " + increaseCount + ", decreased: " + decreaseCount + ", "
+                    + "latency gradient: " + Math.round(gradient * 100) + "%\n";
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Bounded pool of database connections that is used by the {@link DriverProxy}
+ * when "connectionPool.enabled" is set. There is one pool per JDBC url and set
+ * of connection properties.
+ *
+ * Connections are validated when they are borrowed, idle connections above
+ * the minimum pool size are closed after "connectionPool.maxIdleSeconds", and
+ * the pool is filled up to the minimum size in the background. Every pooled
+ * connection keeps a small cache of prepared statements.
+ */
+public class ConnectionPool {
+
+    // pool settings
+    private static volatile boolean enabled;
+    private static volatile int     minSize            = 2;
+    private static volatile int     maxSize            = 20;
+    private static volatile int     maxIdleSeconds     = 300;
+    private static volatile int     maxWaitSeconds     = 30;
+    private static volatile int     validationTimeout  = 5;
+    private static volatile int     statementCacheSize = 50;
+
+    private static final Map<String, ConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+    private static final int REAPER_INTERVAL_SECONDS = 30;
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ConnectionPool-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        REAPER.scheduleWithFixedDelay(() -> {
+            for (ConnectionPool pool : POOLS.values()) {
+                pool.reapIdleConnections();
+                pool.fill();
+            }
+        }, REAPER_INTERVAL_SECONDS, REAPER_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static final Logger LOG = Logger.getLogger(ConnectionPool.class);
+
+    // pool state
+    private final Driver     driver;
+    private final String     url;
+    private final Properties info;
+
+    private final Semaphore                             permits;
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger                         open = new AtomicInteger();
+
+    // statistics
+    private final AtomicInteger waiting        = new AtomicInteger();
+    private final AtomicLong    borrowCount    = new AtomicLong();
+    private final AtomicLong    waitTimeNanos  = new AtomicLong();
+    private final AtomicLong    maxWaitNanos   = new AtomicLong();
+    private final AtomicLong    timeoutCount   = new AtomicLong();
+    private final AtomicLong    createdCount   = new AtomicLong();
+    private final AtomicLong    destroyedCount = new AtomicLong();
+
+
+    private ConnectionPool(Driver driver, String url, Properties info) {
+        this.driver  = driver;
+        this.url     = url;
+        this.info    = info;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+
+    /**
+     * Reads the pool settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        enabled            = config.getBooleanProperty("connectionPool.enabled", false);
+        minSize            = config.getIntProperty("connectionPool.minSize", 2);
+        maxSize            = config.getIntProperty("connectionPool.maxSize", 20);
+        maxIdleSeconds     = config.getIntProperty("connectionPool.maxIdleSeconds", 300);
+        maxWaitSeconds     = config.getIntProperty("connectionPool.maxWaitSeconds", 30);
+        validationTimeout  = config.getIntProperty("connectionPool.validationTimeoutSeconds", 5);
+        statementCacheSize = config.getIntProperty("connectionPool.statementCacheSize", 50);
+    }
+
+
+    /**
+     * Whether connections should be pooled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Retrieves the pool for the given url and connection properties
+     */
+    public static ConnectionPool getPool(Driver driver, String url, Properties info) {
+
+        String key = url + (info != null ? info.toString() : "");
+        return POOLS.computeIfAbsent(key, k -> {
+            ConnectionPool pool = new ConnectionPool(driver, url, info);
+            REAPER.execute(pool::fill);
+            return pool;
+        });
+    }
+
+
+    /**
+     * JDBC url of the pooled connections
+     */
+    String getUrl() {
+        return url;
+    }
+
+
+    /**
+     * Connection properties of the pooled connections
+     */
+    Properties getInfo() {
+        return info;
+    }
+
+
+    /**
+     * Borrows a connection from the pool, waiting at most maxWaitSeconds for
+     * a free connection
+     */
+    public Connection borrow() throws SQLException {
+
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(maxWaitSeconds, TimeUnit.SECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new SQLException("Timeout while waiting for a database connection from the pool (max. size "
+                        + maxSize + ")");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        finally {
+            waiting.decrementAndGet();
+        }
+
+        long waitNanos = System.nanoTime() - start;
+        borrowCount.incrementAndGet();
+        waitTimeNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+
+        try {
+            // reuse the most recently used idle connection, if it is still valid
+            PooledConnection pooled;
+            while ((pooled = idle.pollFirst()) != null) {
+                if (isValid(pooled)) {
+                    return new ConnectionProxy(this, pooled);
+                }
+                destroy(pooled);
+            }
+
+            return new ConnectionProxy(this, create());
+        }
+        catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Returns a connection to the pool
+     */
+    void release(PooledConnection pooled) {
+
+        try {
+            // reset the connection state for the next user
+            if (!pooled.connection.getAutoCommit()) {
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+            pooled.connection.clearWarnings();
+            pooled.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        }
+        catch (SQLException e) {
+            LOG.warn("Discarding pooled connection that could not be reset", e);
+            destroy(pooled);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+
+    /**
+     * Opens a new database connection
+     */
+    private PooledConnection create() throws SQLException {
+
+        Connection connection = driver.connect(url, info);
+        if (connection == null) {
+            throw new SQLException("Driver does not accept url " + url);
+        }
+        open.incrementAndGet();
+        createdCount.incrementAndGet();
+        return new PooledConnection(connection);
+    }
+
+
+    /**
+     * Closes a pooled connection and all of its cached statements
+     */
+    private void destroy(PooledConnection pooled) {
+
+        open.decrementAndGet();
+        destroyedCount.incrementAndGet();
+        pooled.closeStatements();
+        try {
+            pooled.connection.close();
+        }
+        catch (SQLException e) {
+            // nothing to do here
+        }
+    }
+
+
+    /**
+     * Checks if an idle connection can still be used
+     */
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.connection.isValid(validationTimeout);
+        }
+        catch (SQLException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Closes connections that have been idle for too long, keeping at least
+     * minSize open connections
+     */
+    private void reapIdleConnections() {
+
+        long threshold = System.currentTimeMillis() - maxIdleSeconds * 1000L;
+
+        Iterator<PooledConnection> iterator = idle.descendingIterator();
+        while (iterator.hasNext() && open.get() > minSize) {
+            PooledConnection pooled = iterator.next();
+            if (pooled.lastUsed < threshold && idle.remove(pooled)) {
+                destroy(pooled);
+            }
+        }
+    }
+
+
+    /**
+     * Opens idle connections until the pool has minSize open connections
+     */
+    private void fill() {
+
+        try {
+            while (open.get() < Math.min(minSize, maxSize)) {
+                idle.offerLast(create());
+            }
+        }
+        catch (SQLException | RuntimeException e) {
+            LOG.warn("Could not open the minimum number of pooled connections: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Returns the pool statistics as text
+     */
+    public static String getStatistics() {
+
+        if (!enabled) {
+            return "Connection pool: disabled\n";
+        }
+
+        StringBuilder result = new StringBuilder();
+        for (ConnectionPool pool : POOLS.values()) {
+            long borrows = pool.borrowCount.get();
+            result.append("Connection pool: "
+                    + (pool.open.get() - pool.idle.size()) + " active, "
+                    + pool.idle.size() + " idle, "
+                    + pool.open.get() + " open (min " + minSize + ", max " + maxSize + "), "
+                    + pool.waiting.get() + " waiting\n");
+            result.append("  Borrowed: " + borrows + ", "
+                    + "avg wait: " + (borrows == 0 ? 0 : pool.waitTimeNanos.get() / borrows / 1000) + " us, "
+                    + "max wait: " + pool.maxWaitNanos.get() / 1000000 + " ms, "
+                    + "timeouts: " + pool.timeoutCount.get() + ", "
+                    + "created: " + pool.createdCount.get() + ", "
+                    + "closed: " + pool.destroyedCount.get() + "\n");
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * A connection held by the pool, together with its prepared statements
+     */
+    static class PooledConnection {
+
+        final Connection connection;
+        volatile long    lastUsed = System.currentTimeMillis();
+
+        // idle prepared statements by sql text, in LRU order
+        private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+
+        /**
+         * Takes a cached prepared statement for the sql text, or prepares a
+         * new one
+         */
+        synchronized PreparedStatement takeStatement(String sql) throws SQLException {
+
+            PreparedStatement statement = statements.remove(sql);
+            return statement != null ? statement : connection.prepareStatement(sql);
+        }
+
+
+        /**
+         * Puts a prepared statement back into the cache, closing the least
+         * recently used one if the cache is full. The settings of the
+         * statement are reset for the next user, statements that cannot be
+         * reset are closed.
+         */
+        synchronized void returnStatement(String sql, PreparedStatement statement) throws SQLException {
+
+            try {
+                ResultSet resultSet = statement.getResultSet();
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                statement.clearParameters();
+                statement.clearWarnings();
+                statement.setMaxRows(0);
+                statement.setMaxFieldSize(0);
+                statement.setQueryTimeout(0);
+                statement.setFetchSize(0);
+                statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+            }
+            catch (SQLException e) {
+                statement.close();
+                return;
+            }
+
+            PreparedStatement previous = statements.put(sql, statement);
+            if (previous != null && previous != statement) {
+                previous.close();
+            }
+
+            Iterator<PreparedStatement> iterator = statements.values().iterator();
+            while (statements.size() > statementCacheSize && iterator.hasNext()) {
+                iterator.next().close();
+                iterator.remove();
+            }
+        }
+
+
+        /**
+         * Closes all cached statements
+         */
+        synchronized void closeStatements() {
+
+            for (PreparedStatement statement : statements.values()) {
+                try {
+                    statement.close();
+                }
+                catch (SQLException e) {
+                    // nothing to do here
+                }
+            }
+            statements.clear();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mondrian.rolap.RolapUtil;
+import mondrian.util.Pair;
+
+/**
+ * In-memory copy of a small dimension table. Only integer and text columns
+ * are kept, as only their values can be compared with sql literals without
+ * depending on database specific conversions.
+ */
+public class DimensionTable {
+
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final boolean[]            integer;
+    private final List<Object[]>       rows = new ArrayList<>();
+    private final Map<String, Boolean> uniqueColumns = new HashMap<>();
+
+
+    private DimensionTable(int columnCount) {
+        integer = new boolean[columnCount];
+    }
+
+
+    /**
+     * Reads the table from the database, returns null if it has more than
+     * maxRows rows
+     */
+    public static DimensionTable load(Connection con, String schemaName, String tableName, int maxRows)
+            throws SQLException {
+
+        String query = "select * from \"" + schemaName + "\".\"" + tableName + "\" limit " + (maxRows + 1);
+        RolapUtil.SQL_LOGGER.debug(query);
+
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+
+            ResultSetMetaData metaData = rs.getMetaData();
+            DimensionTable table = new DimensionTable(metaData.getColumnCount());
+            for (int i = 0; i < table.integer.length; i++) {
+                switch (metaData.getColumnType(i + 1)) {
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                    table.integer[i] = true;
+                    table.columns.put(metaData.getColumnName(i + 1), i);
+                    break;
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                    table.columns.put(metaData.getColumnName(i + 1), i);
+                    break;
+                default:
+                    break;
+                }
+            }
+
+            while (rs.next()) {
+                if (table.rows.size() >= maxRows) {
+                    return null;
+                }
+                Object[] row = new Object[table.integer.length];
+                for (int col : table.columns.values()) {
+                    if (table.integer[col]) {
+                        long value = rs.getLong(col + 1);
+                        row[col] = rs.wasNull() ? null : value;
+                    }
+                    else {
+                        row[col] = rs.getString(col + 1);
+                    }
+                }
+                table.rows.add(row);
+            }
+            return table;
+        }
+    }
+
+
+    /**
+     * Checks if the column has no null or duplicate values, so that joining
+     * it does not change the number of fact rows
+     */
+    public synchronized boolean isUnique(String column) {
+
+        Boolean unique = uniqueColumns.get(column);
+        if (unique == null) {
+            Integer col = columns.get(column);
+            unique = col != null;
+            if (unique) {
+                Set<Object> values = new HashSet<>();
+                for (Object[] row : rows) {
+                    if (row[col] == null || !values.add(row[col])) {
+                        unique = false;
+                        break;
+                    }
+                }
+            }
+            uniqueColumns.put(column, unique);
+        }
+        return unique;
+    }
+
+
+    /**
+     * Determines the rows where the column is equal to one of the literals.
+     * Returns null if the column or a literal is not supported.
+     */
+    public BitSet match(String column, List<String> literals) {
+
+        Integer col = columns.get(column);
+        if (col == null || literals == null) {
+            return null;
+        }
+
+        Set<Object> values = new HashSet<>();
+        for (String literal : literals) {
+            Object value = parseLiteral(literal, integer[col]);
+            if (value == null) {
+                return null;
+            }
+            values.add(value);
+        }
+
+        BitSet matches = new BitSet(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            if (values.contains(rows.get(i)[col])) {
+                matches.set(i);
+            }
+        }
+        return matches;
+    }
+
+
+    /**
+     * Returns the distinct values of the column in the given rows as sql
+     * literals
+     */
+    public List<String> getLiterals(String column, BitSet selectedRows) {
+
+        int col = columns.get(column);
+        Set<String> literals = new LinkedHashSet<>();
+        for (int i = selectedRows.nextSetBit(0); i >= 0; i = selectedRows.nextSetBit(i + 1)) {
+            Object value = rows.get(i)[col];
+            literals.add(integer[col] ? value.toString() : "'" + value.toString().replace("'", "''") + "'");
+        }
+        return new ArrayList<>(literals);
+    }
+
+
+    /**
+     * Returns the smallest and largest value of an integer column in the
+     * given rows, or null if the column is not an integer column
+     */
+    public Pair<Long, Long> getRange(String column, BitSet selectedRows) {
+
+        Integer col = columns.get(column);
+        if (col == null || !integer[col]) {
+            return null;
+        }
+
+        Long min = null;
+        Long max = null;
+        for (int i = selectedRows.nextSetBit(0); i >= 0; i = selectedRows.nextSetBit(i + 1)) {
+            Long value = (Long) rows.get(i)[col];
+            if (value != null) {
+                min = min == null ? value : Math.min(min, value);
+                max = max == null ? value : Math.max(max, value);
+            }
+        }
+        return new Pair<>(min, max);
+    }
+
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+
+    /**
+     * Converts an integer or string literal to the value of a column, or
+     * returns null if the literal does not fit the column type
+     */
+    private static Object parseLiteral(String literal, boolean integer) {
+
+        if (integer) {
+            try {
+                return Long.parseLong(literal);
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (literal.length() >= 2 && literal.startsWith("'") && literal.endsWith("'")) {
+            return literal.substring(1, literal.length() - 1).replace("''", "'");
+        }
+        return null;
+    }
+}
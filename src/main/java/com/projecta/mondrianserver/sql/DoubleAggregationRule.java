@@ -0,0 +1,59 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+/**
+ * Casts sum(), min(), max() and avg() of measures with the Mondrian datatype
+ * Numeric to double precision. PostgreSQL returns sums of integer and numeric
+ * columns as numeric, which the JDBC driver converts to a BigDecimal for every
+ * cell, while Mondrian only needs a double for these measures. Mondrian keeps
+ * such cells as objects in the segments (about 44 bytes per cell), and
+ * doubles in a plain array (8 bytes per cell).
+ *
+ * The datatypes of the measures are taken from the schema generation of the
+ * Mondrian server that sends the query, see
+ * {@link SqlRewriter#setMeasureDatatypes}.
+ */
+public class DoubleAggregationRule implements RewriteRule {
+
+    @Override
+    public String getName() {
+        return "doubleAggregates";
+    }
+
+
+    @Override
+    public boolean apply(SqlRewriter query, Connection con) {
+
+        if (query.getQueryType() != SqlRewriter.QueryType.SEGMENT_LOAD) {
+            return false;
+        }
+
+        boolean modified = false;
+        for (SqlFragment fragment : query.getFragments()) {
+            if (fragment.getType() != FragmentType.SELECT_AGGREGATION || fragment.getNewText() != null) {
+                continue;
+            }
+            String function = fragment.getAggFunction();
+            if (!function.equals("sum(") && !function.equals("min(") && !function.equals("max(")
+                    && !function.equals("avg(")) {
+                continue;
+            }
+
+            SqlFragment table = query.getTable(fragment.getTableAlias());
+            if (table == null || !"Numeric".equals(query.getMeasureDatatype(table, fragment.getColumnName(),
+                    function.substring(0, function.length() - 1)))) {
+                continue;
+            }
+
+            fragment.setNewText("    cast(" + function + "\"" + fragment.getTableAlias() + "\".\""
+                    + fragment.getColumnName() + "\") as double precision) as \"" + fragment.getResultAlias() + "\""
+                    + (fragment.hasNext() ? "," : ""));
+            fragment.setDoubleCast(true);
+            modified = true;
+        }
+        return modified;
+    }
+}
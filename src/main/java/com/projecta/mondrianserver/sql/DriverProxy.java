@@ -0,0 +1,75 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Delegating wrapper for the postgres java.sql.Driver that wraps every
+ * connection it opens in a {@link ConnectionProxy}. If the
+ * {@link ConnectionPool} is enabled, connections are borrowed from the pool
+ * instead of being opened for every call.
+ */
+public class DriverProxy implements Driver {
+
+    private final Driver driver = new org.postgresql.Driver();
+
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+
+        if (ConnectionPool.isEnabled() && StringUtils.startsWithIgnoreCase(url, "jdbc:postgresql")
+                && driver.acceptsURL(url)) {
+            return ConnectionPool.getPool(driver, url, info).borrow();
+        }
+
+        Connection connection = driver.connect(url, info);
+
+        // proxy every connection
+        if (connection != null && StringUtils.startsWithIgnoreCase(url, "jdbc:postgresql")) {
+            return new ConnectionProxy(connection, url, info);
+        }
+        return connection;
+    }
+
+    @Override
+    public boolean acceptsURL(String url) throws SQLException {
+        return driver.acceptsURL(url);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return driver.getPropertyInfo(url, info);
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return driver.getMajorVersion();
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return driver.getMinorVersion();
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return driver.jdbcCompliant();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return driver.getParentLogger();
+    }
+
+    @Override
+    public String toString() {
+        return SqlProxy.class.getName();
+    }
+}
@@ -0,0 +1,95 @@
+package com.projecta.mondrianserver.sql;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.projecta.mondrianserver.mondrian.SchemaProcessor;
+import com.projecta.mondrianserver.security.CubeAccessRole;
+
+import mondrian.olap.Role;
+import mondrian.rolap.RolapConnection;
+import mondrian.server.Execution;
+import mondrian.server.Locus;
+
+/**
+ * The Mondrian execution, user and schema generation on whose behalf a sql
+ * query is sent to the database, taken from the Mondrian Locus of the current
+ * thread
+ */
+public class ExecutionContext {
+
+    private static final ExecutionContext NONE = new ExecutionContext(-1, null, -1);
+
+    private final long   executionId;
+    private final String userName;
+    private final int    schemaGeneration;
+
+
+    private ExecutionContext(long executionId, String userName, int schemaGeneration) {
+        this.executionId      = executionId;
+        this.userName         = userName;
+        this.schemaGeneration = schemaGeneration;
+    }
+
+
+    /**
+     * Retrieves the context of the current thread
+     */
+    public static ExecutionContext current() {
+
+        Execution execution;
+        try {
+            Locus locus = Locus.peek();
+            execution = locus != null ? locus.execution : null;
+        }
+        catch (RuntimeException e) {
+            // the thread is not running on behalf of a Mondrian execution
+            return NONE;
+        }
+        if (execution == null || execution == Execution.NONE) {
+            return NONE;
+        }
+
+        String userName = null;
+        int schemaGeneration = -1;
+        try {
+            RolapConnection connection = execution.getMondrianStatement().getMondrianConnection();
+            Role role = connection.getRole();
+            if (role instanceof CubeAccessRole) {
+                userName = StringUtils.trimToNull(((CubeAccessRole) role).getUserName());
+            }
+            String generation = connection.getConnectInfo().get(SchemaProcessor.GENERATION_PROPERTY);
+            if (generation != null) {
+                schemaGeneration = Integer.parseInt(generation);
+            }
+        }
+        catch (RuntimeException e) {
+            // the user name and the schema generation are optional
+        }
+        return new ExecutionContext(execution.getId(), userName, schemaGeneration);
+    }
+
+
+    /**
+     * Id of the Mondrian execution, or -1 if unknown
+     */
+    public long getExecutionId() {
+        return executionId;
+    }
+
+
+    /**
+     * Name of the user, or null if unknown
+     */
+    public String getUserName() {
+        return userName;
+    }
+
+
+    /**
+     * Generation of the schema that the Mondrian server uses, see
+     * {@link SchemaProcessor}, or -1 if unknown
+     */
+    public int getSchemaGeneration() {
+        return schemaGeneration;
+    }
+}
@@ -0,0 +1,495 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+import mondrian.rolap.RolapUtil;
+
+/**
+ * Combines segment loads that arrive within a short window and only differ in
+ * their group by columns into a single query with
+ * <code>group by grouping sets (...)</code>, so that the fact table is read
+ * once instead of once per query. Mondrian issues such queries for the
+ * subtotals of a pivot table.
+ *
+ * The first query of a batch waits for the window to end and executes the
+ * combined query. Its rows are assigned to the queries by the value of
+ * <code>grouping(...)</code>, and every query receives a replayable result
+ * with its own columns. Only queries with identical from and where clauses
+ * are combined, and queries that cannot be combined, or whose batch fails,
+ * are executed on their own.
+ */
+public class GroupingSetsBatcher {
+
+    // sql state that postgres uses for canceled statements
+    private static final String QUERY_CANCELED = "57014";
+
+    // grouping() returns an integer bit mask
+    private static final int MAX_KEYS = 31;
+
+    // settings
+    private static volatile boolean enabled;
+    private static volatile int     windowMillis = 20;
+    private static volatile int     maxQueries   = 16;
+
+    // open batches by connection url, from and where clause
+    private static final Map<String, Batch> BATCHES = new HashMap<>();
+
+    private static final Set<FragmentType> KEYWORDS = EnumSet.of(FragmentType.SELECT_KEWORD,
+            FragmentType.FROM_KEWORD, FragmentType.WHERE_KEWORD, FragmentType.AND_KEWORD,
+            FragmentType.GROUP_BY_KEWORD, FragmentType.ORDER_BY_KEWORD);
+
+    private static final Pattern AGGREGATION_PATTERN = Pattern.compile("(.+) as \"(\\w+)\",?", Pattern.DOTALL);
+    private static final Pattern COUNT_ALL_PATTERN   = Pattern.compile("count\\(\\*\\) as \"\\w+\",?");
+
+    private static final String NL = System.getProperty("line.separator");
+
+    // statistics
+    private static final AtomicLong batchCount   = new AtomicLong();
+    private static final AtomicLong batchedCount = new AtomicLong();
+    private static final AtomicLong failedCount  = new AtomicLong();
+
+    private static final Logger LOG = Logger.getLogger(GroupingSetsBatcher.class);
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        enabled      = config.getBooleanProperty("groupingSets.enabled", false);
+        windowMillis = Math.max(1, config.getIntProperty("groupingSets.windowMillis", 20));
+        maxQueries   = Math.max(2, config.getIntProperty("groupingSets.maxQueries", 16));
+    }
+
+
+    /**
+     * Whether concurrent segment loads are combined
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Adds a query that was parsed by the rewriter to an open batch, or opens
+     * a new batch with the query as leader. Returns null if the query cannot
+     * be combined with others.
+     */
+    static Member join(SqlRewriter rewriter, ConnectionProxy connection) {
+
+        if (rewriter.getQueryType() != SqlRewriter.QueryType.SEGMENT_LOAD || connection.getUrl() == null) {
+            return null;
+        }
+
+        Member member;
+        try {
+            member = parse(rewriter.getFragments());
+        }
+        catch (Throwable e) {
+            LOG.error("Error in GroupingSetsBatcher.join()", e);
+            return null;
+        }
+        if (member == null) {
+            return null;
+        }
+
+        String key = connection.getUrl() + NL + member.fromWhere;
+        synchronized (BATCHES) {
+            Batch batch = BATCHES.get(key);
+            if (batch == null) {
+                batch = new Batch(key, member.fromWhere);
+                BATCHES.put(key, batch);
+                member.leader = true;
+            }
+            batch.members.add(member);
+            if (batch.members.size() >= maxQueries) {
+                BATCHES.remove(key);
+                BATCHES.notifyAll();
+            }
+            member.batch = batch;
+        }
+        return member;
+    }
+
+
+    /**
+     * Splits a segment load into group by columns, aggregations and the
+     * shared from and where clause. Returns null if the query has any other
+     * parts.
+     */
+    private static Member parse(List<SqlFragment> fragments) {
+
+        Member member = new Member();
+        StringBuilder fromWhere = new StringBuilder();
+        List<String> groupBy = new ArrayList<>();
+        FragmentType section = null;
+
+        for (SqlFragment fragment : fragments) {
+            FragmentType type = fragment.getType();
+            String text = fragment.getCurrentText().trim();
+
+            if (KEYWORDS.contains(type)) {
+                if (type == FragmentType.ORDER_BY_KEWORD) {
+                    return null;
+                }
+                if (type != FragmentType.AND_KEWORD) {
+                    section = type;
+                }
+                if (section != FragmentType.SELECT_KEWORD && section != FragmentType.GROUP_BY_KEWORD) {
+                    fromWhere.append(text).append(NL);
+                }
+                continue;
+            }
+
+            if (section == FragmentType.SELECT_KEWORD) {
+                if (type == FragmentType.SELECT_EXPRESSION && fragment.getNewText() == null) {
+                    String column = "\"" + fragment.getTableAlias() + "\".\"" + fragment.getColumnName() + "\"";
+                    member.keys.add(column);
+                    member.columns.add(column);
+                    member.labels.add(fragment.getResultAlias());
+                    continue;
+                }
+                Matcher matcher = AGGREGATION_PATTERN.matcher(text);
+                if ((type != FragmentType.SELECT_AGGREGATION && !COUNT_ALL_PATTERN.matcher(text).matches())
+                        || !matcher.matches()) {
+                    return null;
+                }
+                member.aggregations.add(matcher.group(1).trim());
+                member.columns.add(null);
+                member.labels.add(matcher.group(2));
+            }
+            else if (section == FragmentType.FROM_KEWORD || section == FragmentType.WHERE_KEWORD) {
+                fromWhere.append("    ").append(text).append(NL);
+            }
+            else if (section == FragmentType.GROUP_BY_KEWORD) {
+                groupBy.add(text.endsWith(",") ? text.substring(0, text.length() - 1).trim() : text);
+            }
+            else {
+                return null;
+            }
+        }
+
+        // the group by clause has to consist of exactly the selected columns
+        if (member.aggregations.isEmpty() || member.keys.size() != groupBy.size()
+                || !member.keys.containsAll(groupBy) || !groupBy.containsAll(member.keys)) {
+            return null;
+        }
+        member.fromWhere = fromWhere.toString();
+        return member;
+    }
+
+
+    /**
+     * Returns the statistics as text
+     */
+    public static String getStatistics() {
+
+        if (!enabled) {
+            return "Grouping sets: disabled\n";
+        }
+        return "Grouping sets: " + batchCount.get() + " combined queries, "
+                + batchedCount.get() + " queries combined, "
+                + failedCount.get() + " failed\n";
+    }
+
+
+    /**
+     * Queries with the same from and where clause that arrived within the
+     * window
+     */
+    static class Batch {
+
+        private final String       key;
+        private final String       fromWhere;
+        private final long         deadline = System.currentTimeMillis() + windowMillis;
+        private final List<Member> members  = new ArrayList<>();
+
+        Batch(String key, String fromWhere) {
+            this.key       = key;
+            this.fromWhere = fromWhere;
+        }
+
+
+        /**
+         * Waits until the window is over or the batch is full, and closes the
+         * batch for further queries
+         */
+        private List<Member> close() {
+
+            synchronized (BATCHES) {
+                long wait;
+                while (BATCHES.get(key) == this && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        BATCHES.wait(wait);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                BATCHES.remove(key, this);
+                return new ArrayList<>(members);
+            }
+        }
+
+
+        /**
+         * Executes the combined query and publishes the results. Returns the
+         * result of the leader, or null if the leader has to execute its
+         * query on its own.
+         */
+        private CachedResult execute(Member leader, Statement statement) throws SQLException {
+
+            List<Member> queries = close();
+
+            // queries with the same group by columns share one grouping set
+            Map<Set<String>, List<Member>> groupingSets = new LinkedHashMap<>();
+            List<String> keys = new ArrayList<>();
+            List<String> aggregations = new ArrayList<>();
+            for (Member member : queries) {
+                groupingSets.computeIfAbsent(new HashSet<>(member.keys), k -> new ArrayList<>()).add(member);
+                for (String key : member.keys) {
+                    if (!keys.contains(key)) {
+                        keys.add(key);
+                    }
+                }
+                for (String aggregation : member.aggregations) {
+                    if (!aggregations.contains(aggregation)) {
+                        aggregations.add(aggregation);
+                    }
+                }
+            }
+
+            if (groupingSets.size() < 2 || keys.size() > MAX_KEYS) {
+                publish(queries, null, null);
+                return null;
+            }
+
+            try {
+                String query = buildQuery(keys, aggregations, groupingSets.keySet());
+                RolapUtil.SQL_LOGGER.debug("grouping sets query:\n" + query);
+
+                Map<Integer, List<Member>> byGrouping = new HashMap<>();
+                for (Map.Entry<Set<String>, List<Member>> entry : groupingSets.entrySet()) {
+                    int grouping = 0;
+                    for (int i = 0; i < keys.size(); i++) {
+                        if (!entry.getKey().contains(keys.get(i))) {
+                            grouping |= 1 << (keys.size() - 1 - i);
+                        }
+                    }
+                    byGrouping.put(grouping, entry.getValue());
+                }
+
+                Map<Member, CachedResult.Builder> builders = new HashMap<>();
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    CachedResultSetMetaData metaData = new CachedResultSetMetaData(resultSet.getMetaData());
+                    for (Member member : queries) {
+                        member.map(keys, aggregations);
+                        builders.put(member, new CachedResult.Builder(
+                                new CachedResultSetMetaData(metaData, member.mapping,
+                                        member.labels.toArray(new String[member.labels.size()])),
+                                Long.MAX_VALUE));
+                    }
+
+                    int columnCount = keys.size() + aggregations.size() + 1;
+                    Object[] row = new Object[columnCount];
+                    while (resultSet.next()) {
+                        for (int i = 0; i < columnCount; i++) {
+                            row[i] = resultSet.getObject(i + 1);
+                        }
+                        List<Member> members = byGrouping.get(((Number) row[columnCount - 1]).intValue());
+                        if (members == null) {
+                            continue;
+                        }
+                        for (Member member : members) {
+                            Object[] values = new Object[member.mapping.length];
+                            for (int i = 0; i < values.length; i++) {
+                                values[i] = row[member.mapping[i] - 1];
+                            }
+                            builders.get(member).addRow(values);
+                        }
+                    }
+                }
+
+                batchCount.incrementAndGet();
+                batchedCount.addAndGet(queries.size());
+                publish(queries, builders, null);
+                return builders.get(leader).build();
+            }
+            catch (SQLException | RuntimeException e) {
+                failedCount.incrementAndGet();
+                publish(queries, null, leader);
+                throw e;
+            }
+        }
+
+
+        /**
+         * Closes the batch and lets the waiting queries execute on their own,
+         * unless they have already received their results
+         */
+        private void abandon() {
+
+            List<Member> queries;
+            synchronized (BATCHES) {
+                BATCHES.remove(key, this);
+                queries = new ArrayList<>(members);
+            }
+            publish(queries, null, null);
+        }
+
+
+        /**
+         * Completes the waiting queries with their results, or with null if
+         * they have to execute their queries on their own
+         */
+        private static void publish(List<Member> queries, Map<Member, CachedResult.Builder> builders, Member skip) {
+            for (Member member : queries) {
+                if (!member.leader && member != skip) {
+                    member.result.complete(builders == null ? null : builders.get(member).build());
+                }
+            }
+        }
+
+
+        /**
+         * Generates the combined query, with the grouping mask as last column
+         */
+        private String buildQuery(List<String> keys, List<String> aggregations, Set<Set<String>> groupingSets) {
+
+            StringBuilder query = new StringBuilder("select" + NL);
+            for (int i = 0; i < keys.size(); i++) {
+                query.append("    " + keys.get(i) + " as \"k" + i + "\"," + NL);
+            }
+            for (int i = 0; i < aggregations.size(); i++) {
+                query.append("    " + aggregations.get(i) + " as \"a" + i + "\"," + NL);
+            }
+            query.append("    grouping(" + String.join(", ", keys) + ") as \"g\"" + NL);
+            query.append(fromWhere);
+
+            List<String> sets = new ArrayList<>();
+            for (Set<String> groupingSet : groupingSets) {
+                List<String> columns = new ArrayList<>(keys);
+                columns.retainAll(groupingSet);
+                sets.add("(" + String.join(", ", columns) + ")");
+            }
+            query.append("group by grouping sets (" + String.join(", ", sets) + ")");
+            return query.toString();
+        }
+    }
+
+
+    /**
+     * A query in a batch
+     */
+    static class Member {
+
+        private final List<String> keys         = new ArrayList<>();
+        private final List<String> aggregations = new ArrayList<>();
+        // group by column of every result column, null for aggregations
+        private final List<String> columns      = new ArrayList<>();
+        private final List<String> labels       = new ArrayList<>();
+        private String             fromWhere;
+
+        private final CompletableFuture<CachedResult> result = new CompletableFuture<>();
+        private Batch   batch;
+        private boolean leader;
+        private int[]   mapping;
+
+
+        boolean isLeader() {
+            return leader;
+        }
+
+
+        /**
+         * Determines the column of the combined query for every result column
+         */
+        private void map(List<String> allKeys, List<String> allAggregations) {
+
+            mapping = new int[columns.size()];
+            int aggregation = 0;
+            for (int i = 0; i < mapping.length; i++) {
+                mapping[i] = columns.get(i) != null ? allKeys.indexOf(columns.get(i)) + 1
+                           : allKeys.size() + allAggregations.indexOf(aggregations.get(aggregation++)) + 1;
+            }
+        }
+
+
+        /**
+         * Executes the combined query as leader of the batch. Returns the
+         * result of this query, or null if it has to be executed on its own.
+         */
+        CachedResult execute(Statement statement) throws SQLException {
+            return batch.execute(this, statement);
+        }
+
+
+        /**
+         * Called by the leader after its query was executed or failed, so
+         * that no query of the batch waits forever
+         */
+        void release() {
+            batch.abandon();
+        }
+
+
+        /**
+         * Waits for the leader of the batch. Returns the result of this query,
+         * or null if it has to be executed on its own.
+         *
+         * The wait ends early with an exception if the cancel signal completes
+         * or the timeout (in seconds, 0 for none) expires.
+         */
+        CachedResult await(CompletableFuture<Void> cancelSignal, int timeoutSeconds) throws SQLException {
+
+            try {
+                CompletableFuture<Object> any = CompletableFuture.anyOf(result, cancelSignal);
+                if (timeoutSeconds > 0) {
+                    any.get(timeoutSeconds, TimeUnit.SECONDS);
+                }
+                else {
+                    any.get();
+                }
+            }
+            catch (TimeoutException e) {
+                throw new SQLTimeoutException("Timeout while waiting for grouping sets query", QUERY_CANCELED);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for grouping sets query", QUERY_CANCELED, e);
+            }
+            catch (ExecutionException e) {
+                // the result future is never completed exceptionally
+            }
+
+            if (cancelSignal.isDone()) {
+                throw new SQLException("Canceling statement due to user request", QUERY_CANCELED);
+            }
+            return result.getNow(null);
+        }
+    }
+}
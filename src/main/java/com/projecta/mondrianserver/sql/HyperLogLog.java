@@ -0,0 +1,235 @@
+package com.projecta.mondrianserver.sql;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reader for the storage format of the postgresql-hll extension, used to union
+ * hll values in the JVM and to estimate their cardinality the same way as
+ * hll_cardinality() does in the database.
+ *
+ * Only the information needed for the cardinality is kept: explicit values as
+ * a set and sparse or full values as an array of registers.
+ */
+public class HyperLogLog {
+
+    // storage types in the low nibble of the first byte
+    private static final int TYPE_EMPTY    = 1;
+    private static final int TYPE_EXPLICIT = 2;
+    private static final int TYPE_SPARSE   = 3;
+    private static final int TYPE_FULL     = 4;
+
+    private static final int HEADER_BYTES = 3;
+    private static final int AUTO_CUTOFF  = 63;
+
+    private final int log2m;
+    private final int regwidth;
+    private final int explicitThreshold;
+
+    private Set<Long> explicit;
+    private byte[]    registers;
+
+
+    private HyperLogLog(int log2m, int regwidth, int explicitThreshold) {
+        this.log2m             = log2m;
+        this.regwidth          = regwidth;
+        this.explicitThreshold = explicitThreshold;
+    }
+
+
+    /**
+     * Parses the text representation of an hll value ("\x" followed by the
+     * hex encoded bytes)
+     */
+    public static HyperLogLog parse(String text) {
+
+        if (text == null) {
+            return null;
+        }
+        String hex = text.startsWith("\\x") ? text.substring(2) : text;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return parse(bytes);
+    }
+
+
+    /**
+     * Parses the binary representation of an hll value
+     */
+    public static HyperLogLog parse(byte[] bytes) {
+
+        if (bytes.length < HEADER_BYTES || (bytes[0] & 0xf0) >> 4 != 1) {
+            throw new IllegalArgumentException("Unsupported hll format");
+        }
+
+        int type     = bytes[0] & 0x0f;
+        int regwidth = ((bytes[1] & 0xe0) >> 5) + 1;
+        int log2m    = bytes[1] & 0x1f;
+        int cutoff   = bytes[2] & 0x3f;
+
+        // the explicit threshold is either disabled, automatic or a power of two
+        int m = 1 << log2m;
+        int explicitThreshold = cutoff == 0 ? 0
+                              : cutoff == AUTO_CUTOFF ? m * regwidth / 64
+                              : 1 << (cutoff - 1);
+
+        HyperLogLog hll = new HyperLogLog(log2m, regwidth, explicitThreshold);
+        switch (type) {
+        case TYPE_EMPTY:
+            hll.explicit = new HashSet<>();
+            break;
+        case TYPE_EXPLICIT:
+            hll.explicit = new HashSet<>();
+            for (int offset = HEADER_BYTES; offset + 8 <= bytes.length; offset += 8) {
+                long value = 0;
+                for (int i = 0; i < 8; i++) {
+                    value = (value << 8) | (bytes[offset + i] & 0xff);
+                }
+                hll.explicit.add(value);
+            }
+            break;
+        case TYPE_SPARSE:
+            hll.registers = new byte[m];
+            int chunkBits = log2m + regwidth;
+            long chunks = (bytes.length - HEADER_BYTES) * 8L / chunkBits;
+            for (long i = 0; i < chunks; i++) {
+                long chunk = readBits(bytes, i * chunkBits, chunkBits);
+                int index = (int) (chunk >>> regwidth);
+                byte value = (byte) (chunk & ((1 << regwidth) - 1));
+                hll.registers[index] = (byte) Math.max(hll.registers[index], value);
+            }
+            break;
+        case TYPE_FULL:
+            hll.registers = new byte[m];
+            for (int i = 0; i < m; i++) {
+                hll.registers[i] = (byte) readBits(bytes, (long) i * regwidth, regwidth);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported hll type " + type);
+        }
+        return hll;
+    }
+
+
+    /**
+     * Reads a big endian bit field from the data that follows the header
+     */
+    private static long readBits(byte[] bytes, long bitOffset, int bitCount) {
+
+        long value = 0;
+        for (int i = 0; i < bitCount; i++) {
+            long bit = bitOffset + i;
+            int b = bytes[HEADER_BYTES + (int) (bit >>> 3)] & 0xff;
+            value = (value << 1) | ((b >>> (7 - (bit & 7))) & 1);
+        }
+        return value;
+    }
+
+
+    /**
+     * Adds all values of another hll to this one, like hll_union_agg()
+     */
+    public void union(HyperLogLog other) {
+
+        if (other.log2m != log2m || other.regwidth != regwidth) {
+            throw new IllegalArgumentException("Cannot union hll values with different parameters");
+        }
+
+        if (explicit != null && other.explicit != null) {
+            explicit.addAll(other.explicit);
+            if (explicit.size() > explicitThreshold) {
+                promote();
+            }
+            return;
+        }
+
+        if (explicit != null) {
+            promote();
+        }
+        if (other.explicit != null) {
+            for (long value : other.explicit) {
+                addRaw(value);
+            }
+        }
+        else {
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Converts the explicit values to registers
+     */
+    private void promote() {
+
+        registers = new byte[1 << log2m];
+        for (long value : explicit) {
+            addRaw(value);
+        }
+        explicit = null;
+    }
+
+
+    /**
+     * Adds a hashed value to the registers
+     */
+    private void addRaw(long value) {
+
+        long substream = value >>> log2m;
+        if (substream == 0) {
+            return;
+        }
+        int index = (int) (value & ((1 << log2m) - 1));
+        int maxValue = (1 << regwidth) - 1;
+        byte p = (byte) Math.min(maxValue, 1 + Long.numberOfTrailingZeros(substream));
+        registers[index] = (byte) Math.max(registers[index], p);
+    }
+
+
+    /**
+     * Estimates the number of distinct values, like hll_cardinality()
+     */
+    public double cardinality() {
+
+        if (explicit != null) {
+            return explicit.size();
+        }
+
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += Math.pow(2, -register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1.0 + 1.079 / m);
+        double estimator = alpha * m * m / sum;
+
+        if (estimator <= 5.0 * m / 2 && zeros > 0) {
+            // small range correction
+            return m * Math.log((double) m / zeros);
+        }
+
+        double twoToL = Math.pow(2, (1 << regwidth) - 2 + log2m);
+        if (estimator <= twoToL / 30) {
+            return estimator;
+        }
+        // large range correction
+        return -twoToL * Math.log(1.0 - estimator / twoToL);
+    }
+
+
+    @Override
+    public String toString() {
+        return "HyperLogLog [log2m=" + log2m + ", regwidth=" + regwidth
+                + (explicit != null ? ", explicit=" + explicit.size() : ", registers=" + registers.length) + "]";
+    }
+}
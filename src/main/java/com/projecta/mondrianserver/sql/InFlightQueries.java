@@ -0,0 +1,170 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Coalesces concurrent executions of identical sql queries: the first
+ * execution of a query runs against the database, and identical queries that
+ * arrive while it is running wait for it and receive their own replayable
+ * copy of its result.
+ *
+ * If the first execution fails, is not read to the end or its result is too
+ * large to be shared, the waiting queries are executed on their own.
+ */
+public class InFlightQueries {
+
+    private static final long MB = 1024L * 1024L;
+
+    // sql state that postgres uses for canceled statements
+    private static final String QUERY_CANCELED = "57014";
+
+    // settings
+    private static volatile boolean enabled;
+    private static volatile long    maxResultBytes = 64 * MB;
+
+    private static final Map<String, Flight> FLIGHTS = new ConcurrentHashMap<>();
+
+    // statistics
+    private static final AtomicLong executions = new AtomicLong();
+    private static final AtomicLong saved      = new AtomicLong();
+    private static final AtomicLong fallbacks  = new AtomicLong();
+    private static final AtomicLong canceled   = new AtomicLong();
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        enabled        = config.getBooleanProperty("singleFlight.enabled", false);
+        maxResultBytes = config.getIntProperty("singleFlight.maxResultSizeMb", 64) * MB;
+    }
+
+
+    /**
+     * Whether concurrent identical queries should be coalesced
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Maximum size of a result that is shared with waiting queries
+     */
+    public static long getMaxResultBytes() {
+        return maxResultBytes;
+    }
+
+
+    /**
+     * Registers a new execution of the query. Returns null if the query is
+     * already running, in which case the caller should {@link #await} it.
+     */
+    static Flight start(String key) {
+
+        Flight flight = new Flight(key);
+        if (FLIGHTS.putIfAbsent(key, flight) != null) {
+            return null;
+        }
+        executions.incrementAndGet();
+        return flight;
+    }
+
+
+    /**
+     * Waits for the running execution of the query. Returns its result, or
+     * null if the caller has to execute the query itself.
+     *
+     * The wait ends early with an exception if the cancel signal completes or
+     * the timeout (in seconds, 0 for none) expires.
+     */
+    static CachedResult await(String key, CompletableFuture<Void> cancelSignal, int timeoutSeconds) throws SQLException {
+
+        Flight flight = FLIGHTS.get(key);
+        if (flight == null) {
+            fallbacks.incrementAndGet();
+            return null;
+        }
+
+        try {
+            CompletableFuture<Object> any = CompletableFuture.anyOf(flight.result, cancelSignal);
+            if (timeoutSeconds > 0) {
+                any.get(timeoutSeconds, TimeUnit.SECONDS);
+            }
+            else {
+                any.get();
+            }
+        }
+        catch (TimeoutException e) {
+            canceled.incrementAndGet();
+            throw new SQLTimeoutException("Timeout while waiting for identical running query", QUERY_CANCELED);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            canceled.incrementAndGet();
+            throw new SQLException("Interrupted while waiting for identical running query", QUERY_CANCELED, e);
+        }
+        catch (ExecutionException e) {
+            // the result future is never completed exceptionally
+        }
+
+        if (cancelSignal.isDone()) {
+            canceled.incrementAndGet();
+            throw new SQLException("Canceling statement due to user request", QUERY_CANCELED);
+        }
+
+        CachedResult result = flight.result.getNow(null);
+        (result != null ? saved : fallbacks).incrementAndGet();
+        return result;
+    }
+
+
+    /**
+     * Returns the statistics as text
+     */
+    public static String getStatistics() {
+
+        if (!enabled) {
+            return "Single-flight: disabled\n";
+        }
+        return "Single-flight: " + FLIGHTS.size() + " running, "
+                + executions.get() + " executed, "
+                + saved.get() + " executions saved, "
+                + fallbacks.get() + " fallbacks, "
+                + canceled.get() + " canceled waits\n";
+    }
+
+
+    /**
+     * A running query execution
+     */
+    static class Flight {
+
+        private final String                          key;
+        private final CompletableFuture<CachedResult> result = new CompletableFuture<>();
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Publishes the result to all waiting queries, null if they have to
+         * execute the query on their own
+         */
+        void complete(CachedResult cachedResult) {
+            FLIGHTS.remove(key, this);
+            result.complete(cachedResult);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+/**
+ * Removes joins with small dimension tables that are only used to filter the
+ * fact table, e.g.
+ *
+ * <pre>
+ * "fact"."time_id" = "time"."time_id" and "time"."year" = 2024
+ * </pre>
+ *
+ * becomes a condition on the foreign key, with the keys of the matching
+ * dimension rows taken from a recent snapshot of the {@link DimensionTable}
+ * (see "sqlRewrite.dimensionTableSeconds"):
+ *
+ * <pre>
+ * "fact"."time_id" in (20240101, 20240102, ...)
+ * </pre>
+ */
+public class JoinEliminationRule implements RewriteRule {
+
+    private static final int MAX_ELIMINATED_JOIN_KEYS = 1000;
+
+
+    @Override
+    public String getName() {
+        return "joinElimination";
+    }
+
+
+    @Override
+    public boolean apply(SqlRewriter query, Connection con) {
+
+        boolean modified = false;
+        for (SqlFragment join : query.getJoins()) {
+
+            // find the side of the join that is the dimension table
+            String dimAlias = join.getJoinedTableAlias();
+            String dimColumn = join.getJoinedColumnName();
+            String factAlias = join.getTableAlias();
+            String factColumn = join.getColumnName();
+            if (!isFilterOnly(query, dimAlias, join)) {
+                dimAlias = join.getTableAlias();
+                dimColumn = join.getColumnName();
+                factAlias = join.getJoinedTableAlias();
+                factColumn = join.getJoinedColumnName();
+                if (!isFilterOnly(query, dimAlias, join)) {
+                    continue;
+                }
+            }
+
+            SqlFragment dimTable = query.getTable(dimAlias);
+            if (dimTable == null || query.getTable(factAlias) == null) {
+                continue;
+            }
+            DimensionTable dimension = SqlRewriter.getDimensionTable(dimTable.getSchemaName(), dimTable.getTableName());
+            if (dimension == null || !dimension.isUnique(dimColumn)) {
+                continue;
+            }
+
+            // evaluate the filter conditions on the dimension table
+            List<SqlFragment> conditions = new ArrayList<>();
+            BitSet selectedRows = new BitSet();
+            selectedRows.set(0, dimension.getRowCount());
+            for (SqlFragment fragment : query.getFragments()) {
+                if (fragment.getType() == FragmentType.CONDITION && dimAlias.equals(fragment.getTableAlias())) {
+                    BitSet matches = dimension.match(fragment.getColumnName(),
+                            SqlParser.getConditionLiterals(fragment.getCurrentText()));
+                    if (matches == null) {
+                        conditions = null;
+                        break;
+                    }
+                    selectedRows.and(matches);
+                    conditions.add(fragment);
+                }
+            }
+            if (conditions == null || conditions.isEmpty() || selectedRows.isEmpty()
+                    || selectedRows.cardinality() > MAX_ELIMINATED_JOIN_KEYS) {
+                continue;
+            }
+
+            // replace the first condition and remove the join
+            List<String> keys = dimension.getLiterals(dimColumn, selectedRows);
+            String factKey = "\"" + factAlias + "\".\"" + factColumn + "\"";
+            conditions.get(0).setNewText("    " + factKey
+                    + (keys.size() == 1 ? " = " + keys.get(0) : " in (" + String.join(", ", keys) + ")"));
+            conditions.get(0).setTableAlias(factAlias);
+            conditions.get(0).setColumnName(factColumn);
+            for (int i = 1; i < conditions.size(); i++) {
+                query.removeFragment(conditions.get(i));
+            }
+            query.removeFragment(join);
+            query.removeFragment(dimTable);
+            modified = true;
+        }
+        return modified;
+    }
+
+
+    /**
+     * Checks if a table alias is only used in the join condition and in
+     * filter conditions with literal values
+     */
+    private static boolean isFilterOnly(SqlRewriter query, String alias, SqlFragment join) {
+
+        String reference = "\"" + alias + "\".";
+        for (SqlFragment fragment : query.getFragments()) {
+            if (fragment == join || alias.equals(fragment.getTableAlias())
+                    && (fragment.getType() == FragmentType.TABLE || fragment.getType() == FragmentType.CONDITION)) {
+                continue;
+            }
+            if (fragment.getCurrentText().contains(reference)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
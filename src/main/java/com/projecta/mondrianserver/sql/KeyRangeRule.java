@@ -0,0 +1,150 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+import com.projecta.mondrianserver.sql.SqlRewriter.QueryType;
+
+import mondrian.util.Pair;
+
+/**
+ * Adds the range of the dimension keys that match the filter conditions of a
+ * dimension as a condition on the foreign key of the fact table, e.g.
+ *
+ * <pre>
+ * "fact"."time_id" = "time"."time_id" and "time"."year" = 2024
+ * </pre>
+ *
+ * gets the additional condition
+ *
+ * <pre>
+ * ("fact"."time_id" between 20240101 and 20241231)
+ * </pre>
+ *
+ * so that the database can prune partitions of the fact table. The range
+ * is taken from a snapshot of the dimension table, which is at most
+ * "sqlRewrite.dimensionTableSeconds" old and dropped when the caches are
+ * flushed, or else queried from the database and cached for 10 seconds (also
+ * dropped on flushes). As all fact rows outside of the range are removed by
+ * the join anyway, this only changes the result if matching dimension rows
+ * are added without flushing the caches, during the lifetime of a snapshot
+ * or a cached range.
+ */
+public class KeyRangeRule implements RewriteRule {
+
+    private static final String NL = System.getProperty("line.separator");
+
+
+    @Override
+    public String getName() {
+        return "keyRanges";
+    }
+
+
+    @Override
+    public boolean apply(SqlRewriter query, Connection con) {
+
+        if (query.getQueryType() != QueryType.SEGMENT_LOAD) {
+            return false;
+        }
+
+        // the fact table is the one that is aggregated
+        String factAlias = null;
+        for (SqlFragment fragment : query.getFragments()) {
+            if (fragment.getType() == FragmentType.SELECT_AGGREGATION) {
+                factAlias = fragment.getTableAlias();
+                break;
+            }
+        }
+        if (factAlias == null) {
+            return false;
+        }
+
+        boolean modified = false;
+        for (SqlFragment join : query.getJoins()) {
+            if (factAlias.equals(join.getTableAlias())) {
+                modified |= addKeyRange(query, con, join, join.getJoinedTableAlias(), join.getJoinedColumnName(),
+                        factAlias, join.getColumnName());
+            }
+            else if (factAlias.equals(join.getJoinedTableAlias())) {
+                modified |= addKeyRange(query, con, join, join.getTableAlias(), join.getColumnName(),
+                        factAlias, join.getJoinedColumnName());
+            }
+        }
+        return modified;
+    }
+
+
+    /**
+     * Adds the key range of one dimension after its join condition
+     */
+    private static boolean addKeyRange(SqlRewriter query, Connection con, SqlFragment join, String dimAlias,
+                                       String dimColumn, String factAlias, String factColumn) {
+
+        SqlFragment dimTable = query.getTable(dimAlias);
+        if (dimTable == null) {
+            return false;
+        }
+
+        List<SqlFragment> conditions = new ArrayList<>();
+        for (SqlFragment fragment : query.getFragments()) {
+            if (fragment.getType() == FragmentType.CONDITION && dimAlias.equals(fragment.getTableAlias())) {
+                conditions.add(fragment);
+            }
+        }
+        if (conditions.isEmpty()) {
+            return false;
+        }
+
+        Pair<Long, Long> range = getKeyRange(con, dimTable, dimColumn, conditions);
+        if (range == null || range.left == null) {
+            return false;
+        }
+
+        query.addConditionAfter(join, "(\"" + factAlias + "\".\"" + factColumn + "\" between "
+                + range.left + " and " + range.right + ")");
+        return true;
+    }
+
+
+    /**
+     * Determines the smallest and largest integer key of the dimension rows
+     * that match the conditions, either from a fresh snapshot of the
+     * dimension table or with a query on the database, whose result is
+     * cached for a few seconds
+     */
+    private static Pair<Long, Long> getKeyRange(Connection con, SqlFragment dimTable, String dimColumn,
+                                                List<SqlFragment> conditions) {
+
+        DimensionTable dimension = SqlRewriter.getDimensionTable(dimTable.getSchemaName(), dimTable.getTableName());
+        if (dimension != null) {
+            BitSet selectedRows = new BitSet();
+            selectedRows.set(0, dimension.getRowCount());
+            for (SqlFragment condition : conditions) {
+                BitSet matches = dimension.match(condition.getColumnName(),
+                        SqlParser.getConditionLiterals(condition.getCurrentText()));
+                if (matches == null) {
+                    selectedRows = null;
+                    break;
+                }
+                selectedRows.and(matches);
+            }
+            if (selectedRows != null) {
+                return dimension.getRange(dimColumn, selectedRows);
+            }
+        }
+
+        StringBuilder query = new StringBuilder();
+        String column = "\"" + dimTable.getTableAlias() + "\".\"" + dimColumn + "\"";
+        query.append("select min(" + column + "), max(" + column + ")" + NL);
+        query.append("from" + NL + dimTable.getText().replaceAll(",$", "") + NL);
+        query.append("where" + NL);
+        for (int i = 0; i < conditions.size(); i++) {
+            query.append((i > 0 ? "and" + NL : "") + conditions.get(i).getCurrentText() + NL);
+        }
+        return SqlRewriter.getDimensionRange(con, query.toString());
+    }
+}
@@ -0,0 +1,107 @@
+package com.projecta.mondrianserver.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in microseconds with logarithmic buckets.
+ * Values below 16 us have their own bucket, above that every power of two is
+ * split into four buckets, which bounds the error of percentiles to 25 %.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKETS    = 4;
+    private static final int MAX_EXPONENT   = 40;
+    private static final int BUCKETS        = LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder       count  = new LongAdder();
+    private final LongAdder       total  = new LongAdder();
+    private final AtomicLong      max    = new AtomicLong();
+
+
+    /**
+     * Records a duration in microseconds
+     */
+    public void record(long micros) {
+
+        micros = Math.max(micros, 0);
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        total.add(micros);
+        if (micros > max.get()) {
+            max.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * Retrieves the value below which the given fraction of all recorded
+     * values lies (e.g. 0.95 for the 95th percentile)
+     */
+    public long getPercentile(double fraction) {
+
+        long[] snapshot = new long[BUCKETS];
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            sum += snapshot[i];
+        }
+        if (sum == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * sum);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+
+    /**
+     * Calculates the bucket index for a value
+     */
+    private static int bucket(long value) {
+
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+
+    /**
+     * Calculates the largest value of a bucket
+     */
+    private static long upperBound(int bucket) {
+
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+    }
+}
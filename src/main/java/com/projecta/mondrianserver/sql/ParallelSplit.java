@@ -0,0 +1,591 @@
+package com.projecta.mondrianserver.sql;
+
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+import mondrian.rolap.RolapUtil;
+
+/**
+ * Runs large segment loads as several sub-queries that each aggregate one
+ * range of a configured fact table column ("parallelSplit.columns"), so that
+ * a single query can use multiple database cores. The partial results are
+ * merged in the JVM: sums and counts are added up, minimums and maximums are
+ * compared, and hll values are unioned with {@link HyperLogLog}.
+ *
+ * Only queries that consist of plain group by columns and mergeable
+ * aggregations are split. The ranges are taken from the histogram that
+ * PostgreSQL keeps in pg_stats for the split column, so that every sub-query
+ * reads about the same number of rows.
+ */
+public class ParallelSplit {
+
+    // settings
+    private static volatile boolean             enabled;
+    private static volatile int                 degree        = 4;
+    private static volatile long                minTableRows  = 10000000;
+    private static volatile int                 statisticsTtl = 600;
+    private static volatile Map<String, String> splitColumns  = new HashMap<>();
+
+    private static final int MAX_THREADS = 32;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_THREADS, r -> {
+        Thread thread = new Thread(r, "ParallelSplit-query");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // table statistics by schema.table.column
+    private static final Map<String, TableStatistics> STATISTICS = new ConcurrentHashMap<>();
+
+    private static final Driver DRIVER = new org.postgresql.Driver();
+
+    private static final Set<FragmentType> KEYWORDS = EnumSet.of(FragmentType.SELECT_KEWORD,
+            FragmentType.FROM_KEWORD, FragmentType.WHERE_KEWORD, FragmentType.AND_KEWORD,
+            FragmentType.GROUP_BY_KEWORD, FragmentType.ORDER_BY_KEWORD);
+
+    private static final Pattern COUNT_ALL_PATTERN    = Pattern.compile("count\\(\\*\\) as \"\\w+\",?");
+    private static final Pattern GROUP_BY_PATTERN     = Pattern.compile("\"\\w+\"\\.\"\\w+\",?");
+
+    private static final String NL = System.getProperty("line.separator");
+
+    // statistics
+    private static final AtomicLong splitCount    = new AtomicLong();
+    private static final AtomicLong subQueryCount = new AtomicLong();
+    private static final AtomicLong failedCount   = new AtomicLong();
+
+    private static final Logger LOG = Logger.getLogger(ParallelSplit.class);
+
+
+    /**
+     * How the values of a result column are merged
+     */
+    enum Merge {
+        KEY, SUM, MIN, MAX, HLL
+    }
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        enabled       = config.getBooleanProperty("parallelSplit.enabled", false);
+        degree        = Math.max(2, config.getIntProperty("parallelSplit.degree", 4));
+        minTableRows  = config.getIntProperty("parallelSplit.minTableRows", 10000000);
+        statisticsTtl = config.getIntProperty("parallelSplit.statisticsTtlSeconds", 600);
+
+        // schema.table.column entries, separated by commas
+        Map<String, String> columns = new HashMap<>();
+        for (String entry : StringUtils.split(StringUtils.defaultString(config.getProperty("parallelSplit.columns")), ',')) {
+            String name = entry.trim().toLowerCase();
+            int separator = name.lastIndexOf('.');
+            if (separator > 0) {
+                columns.put(name.substring(0, separator), name.substring(separator + 1));
+            }
+        }
+        splitColumns = columns;
+        STATISTICS.clear();
+    }
+
+
+    /**
+     * Whether large queries are split
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Creates the sub-queries for a query that was parsed by the rewriter, or
+     * returns null if the query cannot or need not be split
+     */
+    static Plan plan(SqlRewriter rewriter, ConnectionProxy connection) {
+
+        if (rewriter.getQueryType() != SqlRewriter.QueryType.SEGMENT_LOAD || connection.getUrl() == null) {
+            return null;
+        }
+
+        try {
+            List<SqlFragment> fragments = rewriter.getFragments();
+            List<Merge> merges = new ArrayList<>();
+            SqlFragment splitTable = null;
+            String splitColumn = null;
+            FragmentType section = null;
+
+            for (SqlFragment fragment : fragments) {
+                FragmentType type = fragment.getType();
+                String text = fragment.getText().trim();
+
+                if (KEYWORDS.contains(type)) {
+                    if (type == FragmentType.ORDER_BY_KEWORD) {
+                        return null;
+                    }
+                    if (type != FragmentType.AND_KEWORD) {
+                        section = type;
+                    }
+                    continue;
+                }
+
+                if (section == FragmentType.SELECT_KEWORD) {
+                    Merge merge = getMerge(fragment, text);
+                    if (merge == null) {
+                        return null;
+                    }
+                    merges.add(merge);
+                }
+                else if (section == FragmentType.FROM_KEWORD) {
+                    if (type != FragmentType.TABLE) {
+                        return null;
+                    }
+                    String column = splitColumns.get((fragment.getSchemaName() + "." + fragment.getTableName()).toLowerCase());
+                    if (column != null && splitTable == null) {
+                        splitTable = fragment;
+                        splitColumn = column;
+                    }
+                }
+                else if (section == FragmentType.GROUP_BY_KEWORD) {
+                    if (!GROUP_BY_PATTERN.matcher(text).matches()) {
+                        return null;
+                    }
+                }
+                else if (section == null) {
+                    return null;
+                }
+            }
+
+            if (splitTable == null || Collections.frequency(merges, Merge.KEY) == merges.size()) {
+                return null;
+            }
+
+            TableStatistics statistics = getStatistics(splitTable, splitColumn, connection.getDelegate());
+            if (statistics.rows < minTableRows || statistics.bounds.isEmpty()) {
+                return null;
+            }
+
+            String column = "\"" + splitTable.getTableAlias() + "\".\"" + splitColumn + "\"";
+            List<String> queries = new ArrayList<>();
+            for (int i = 0; i <= statistics.bounds.size(); i++) {
+                String lower = i > 0 ? quote(statistics.bounds.get(i - 1)) : null;
+                String upper = i < statistics.bounds.size() ? quote(statistics.bounds.get(i)) : null;
+                String predicate = lower == null ? "(" + column + " < " + upper + " or " + column + " is null)"
+                                 : upper == null ? column + " >= " + lower
+                                 : "(" + column + " >= " + lower + " and " + column + " < " + upper + ")";
+                queries.add(buildQuery(fragments, predicate));
+            }
+            return new Plan(queries, merges.toArray(new Merge[merges.size()]));
+        }
+        catch (Throwable e) {
+            LOG.error("Error in ParallelSplit.plan()", e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Determines how a select expression is merged, or returns null if it
+     * cannot be merged
+     */
+    private static Merge getMerge(SqlFragment fragment, String text) {
+
+        if (fragment.getType() == FragmentType.SELECT_AGGREGATION) {
+            if (fragment.isHllAggregation()) {
+                return Merge.HLL;
+            }
+            if (fragment.getNewText() != null && !fragment.isDoubleCast()) {
+                // rewritten by another rule, e.g. a percentile of merged sketches
+                return null;
+            }
+            switch (fragment.getAggFunction()) {
+            case "sum(":
+            case "count(":
+                return Merge.SUM;
+            case "min(":
+                return Merge.MIN;
+            case "max(":
+                return Merge.MAX;
+            default:
+                return null;
+            }
+        }
+        if (COUNT_ALL_PATTERN.matcher(text).matches()) {
+            return Merge.SUM;
+        }
+        if (fragment.getType() == FragmentType.SELECT_EXPRESSION) {
+            return Merge.KEY;
+        }
+        return null;
+    }
+
+
+    /**
+     * Generates a sub-query with an additional predicate. Hll aggregations
+     * return the unioned hll values instead of their cardinality.
+     */
+    private static String buildQuery(List<SqlFragment> fragments, String predicate) {
+
+        StringBuilder query = new StringBuilder();
+        boolean hasWhere = false;
+        for (SqlFragment fragment : fragments) {
+            if (fragment.getType() == FragmentType.GROUP_BY_KEWORD && !hasWhere) {
+                query.append("where" + NL + "    " + predicate + NL);
+                hasWhere = true;
+            }
+
+            if (fragment.isHllAggregation()) {
+                query.append("    hll_union_agg(\"" + fragment.getTableAlias() + "\".\"" + fragment.getColumnName()
+                        + "\") as \"" + fragment.getResultAlias() + "\"" + (fragment.hasNext() ? "," : ""));
+            }
+            else {
+                query.append(fragment.getNewText() != null ? fragment.getNewText() : fragment.getText());
+            }
+            query.append(NL);
+
+            if (fragment.getType() == FragmentType.WHERE_KEWORD) {
+                query.append("    " + predicate + NL + "and" + NL);
+                hasWhere = true;
+            }
+        }
+        if (!hasWhere) {
+            query.append("where" + NL + "    " + predicate + NL);
+        }
+        return query.toString();
+    }
+
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+
+    /**
+     * Retrieves the estimated row count of the table and the split points for
+     * the column from the database statistics
+     */
+    private static TableStatistics getStatistics(SqlFragment table, String column, Connection con) throws SQLException {
+
+        String key = (table.getSchemaName() + "." + table.getTableName() + "." + column).toLowerCase();
+        TableStatistics statistics = STATISTICS.get(key);
+        if (statistics != null && statistics.expires > System.currentTimeMillis()) {
+            return statistics;
+        }
+
+        String query = "\nselect c.reltuples::bigint, s.histogram_bounds::text::text[]\n"
+                     + "from pg_class c\n"
+                     + "join pg_namespace n on c.relnamespace = n.oid\n"
+                     + "left join pg_stats s on s.schemaname = n.nspname and s.tablename = c.relname and s.attname = ?\n"
+                     + "where n.nspname = ? and c.relname = ?\n"
+                     + "order by s.inherited desc";
+
+        RolapUtil.SQL_LOGGER.debug(query);
+
+        long rows = 0;
+        List<String> bounds = new ArrayList<>();
+        try (PreparedStatement stmt = con.prepareStatement(query)) {
+            stmt.setString(1, column);
+            stmt.setString(2, table.getSchemaName());
+            stmt.setString(3, table.getTableName());
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    rows = rs.getLong(1);
+                    Array array = rs.getArray(2);
+                    if (array != null) {
+                        String[] histogram = (String[]) array.getArray();
+                        bounds = getSplitPoints(histogram);
+                    }
+                }
+            }
+        }
+
+        statistics = new TableStatistics(rows, bounds, System.currentTimeMillis() + statisticsTtl * 1000L);
+        STATISTICS.put(key, statistics);
+        return statistics;
+    }
+
+
+    /**
+     * Picks degree - 1 evenly spaced, distinct values from the histogram
+     */
+    private static List<String> getSplitPoints(String[] histogram) {
+
+        List<String> points = new ArrayList<>();
+        int buckets = histogram.length - 1;
+        for (int i = 1; i < degree && buckets > 0; i++) {
+            String point = histogram[Math.round((float) i * buckets / degree)];
+            if (point != null && !points.contains(point)) {
+                points.add(point);
+            }
+        }
+        return points;
+    }
+
+
+    /**
+     * Returns the statistics as text
+     */
+    public static String getStatistics() {
+
+        if (!enabled) {
+            return "Parallel split: disabled\n";
+        }
+        return "Parallel split: " + splitCount.get() + " queries split into " + subQueryCount.get()
+                + " sub-queries, failed: " + failedCount.get() + "\n";
+    }
+
+
+    /**
+     * Estimated row count and split points of a table column
+     */
+    private static class TableStatistics {
+
+        final long         rows;
+        final List<String> bounds;
+        final long         expires;
+
+        TableStatistics(long rows, List<String> bounds, long expires) {
+            this.rows    = rows;
+            this.bounds  = bounds;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * The sub-queries of a split query
+     */
+    static class Plan {
+
+        private final List<String>   queries;
+        private final Merge[]        merges;
+        private final Set<Statement> running = ConcurrentHashMap.newKeySet();
+        private volatile boolean     canceled;
+
+
+        Plan(List<String> queries, Merge[] merges) {
+            this.queries = queries;
+            this.merges  = merges;
+        }
+
+
+        /**
+         * Runs the sub-queries on separate connections and merges their
+         * results
+         */
+        CachedResult execute(ConnectionProxy connection, int timeoutSeconds) throws SQLException {
+
+            splitCount.incrementAndGet();
+            subQueryCount.addAndGet(queries.size());
+
+            List<Future<Partial>> futures = new ArrayList<>();
+            for (String query : queries) {
+                futures.add(EXECUTOR.submit(() -> executeQuery(query, connection, timeoutSeconds)));
+            }
+
+            try {
+                Map<List<Object>, Object[]> rows = new LinkedHashMap<>();
+                CachedResultSetMetaData metaData = null;
+                for (Future<Partial> future : futures) {
+                    Partial partial = future.get();
+                    metaData = partial.metaData;
+                    for (Object[] row : partial.rows) {
+                        merge(rows, row);
+                    }
+                }
+
+                for (int i = 0; i < merges.length; i++) {
+                    if (merges[i] == Merge.HLL) {
+                        metaData.setColumnType(i + 1, Types.DOUBLE, "float8", Double.class.getName());
+                    }
+                }
+
+                CachedResult.Builder builder = new CachedResult.Builder(metaData, Long.MAX_VALUE);
+                for (Object[] row : rows.values()) {
+                    for (int i = 0; i < merges.length; i++) {
+                        if (merges[i] == Merge.HLL && row[i] != null) {
+                            row[i] = ((HyperLogLog) row[i]).cardinality();
+                        }
+                    }
+                    builder.addRow(row);
+                }
+                return builder.build();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failed(new SQLException("Interrupted while waiting for sub-queries", e), futures);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw failed(cause instanceof SQLException ? (SQLException) cause
+                           : new SQLException("Error in sub-query: " + cause.getMessage(), cause), futures);
+            }
+        }
+
+
+        /**
+         * Cancels the remaining sub-queries after one of them failed
+         */
+        private SQLException failed(SQLException e, List<Future<Partial>> futures) {
+
+            failedCount.incrementAndGet();
+            cancel();
+            for (Future<Partial> future : futures) {
+                future.cancel(true);
+            }
+            return e;
+        }
+
+
+        /**
+         * Adds a row of a sub-query to the merged rows
+         */
+        private void merge(Map<List<Object>, Object[]> rows, Object[] row) {
+
+            List<Object> key = new ArrayList<>();
+            for (int i = 0; i < merges.length; i++) {
+                if (merges[i] == Merge.KEY) {
+                    key.add(row[i]);
+                }
+            }
+
+            Object[] merged = rows.putIfAbsent(key, row);
+            if (merged == null) {
+                return;
+            }
+            for (int i = 0; i < merges.length; i++) {
+                merged[i] = merge(merges[i], merged[i], row[i]);
+            }
+        }
+
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private static Object merge(Merge merge, Object a, Object b) {
+
+            if (a == null || merge == Merge.KEY) {
+                return merge == Merge.KEY ? a : b;
+            }
+            if (b == null) {
+                return a;
+            }
+            switch (merge) {
+            case SUM:
+                if (a instanceof BigDecimal || b instanceof BigDecimal) {
+                    return new BigDecimal(a.toString()).add(new BigDecimal(b.toString()));
+                }
+                if (a instanceof Double || a instanceof Float) {
+                    return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+                }
+                return ((Number) a).longValue() + ((Number) b).longValue();
+            case MIN:
+                return ((Comparable) a).compareTo(b) <= 0 ? a : b;
+            case MAX:
+                return ((Comparable) a).compareTo(b) >= 0 ? a : b;
+            case HLL:
+                ((HyperLogLog) a).union((HyperLogLog) b);
+                return a;
+            default:
+                return a;
+            }
+        }
+
+
+        /**
+         * Runs one sub-query on a new connection and reads its rows
+         */
+        private Partial executeQuery(String query, ConnectionProxy connection, int timeoutSeconds) throws SQLException {
+
+            RolapUtil.SQL_LOGGER.debug("parallel sub-query:\n" + query);
+
+            try (Connection con = DRIVER.connect(connection.getUrl(), connection.getInfo());
+                 Statement statement = con.createStatement()) {
+
+                running.add(statement);
+                if (canceled) {
+                    throw new SQLException("Query was canceled");
+                }
+                statement.setQueryTimeout(timeoutSeconds);
+
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    Partial partial = new Partial(new CachedResultSetMetaData(resultSet.getMetaData()));
+                    while (resultSet.next()) {
+                        Object[] row = new Object[merges.length];
+                        for (int i = 0; i < merges.length; i++) {
+                            row[i] = merges[i] == Merge.HLL ? HyperLogLog.parse(resultSet.getString(i + 1))
+                                   : resultSet.getObject(i + 1);
+                        }
+                        partial.rows.add(row);
+                    }
+                    return partial;
+                }
+                finally {
+                    running.remove(statement);
+                }
+            }
+        }
+
+
+        /**
+         * Cancels all running sub-queries
+         */
+        void cancel() {
+
+            canceled = true;
+            for (Statement statement : running) {
+                try {
+                    statement.cancel();
+                }
+                catch (SQLException e) {
+                    // nothing to do here
+                }
+            }
+        }
+
+
+        @Override
+        public String toString() {
+            return "Plan [queries=" + queries.size() + ", merges=" + Arrays.toString(merges) + "]";
+        }
+    }
+
+
+    /**
+     * The rows read by a sub-query
+     */
+    private static class Partial {
+
+        final CachedResultSetMetaData metaData;
+        final List<Object[]>          rows = new ArrayList<>();
+
+        Partial(CachedResultSetMetaData metaData) {
+            this.metaData = metaData;
+        }
+    }
+}
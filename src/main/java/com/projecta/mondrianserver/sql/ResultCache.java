@@ -0,0 +1,256 @@
+package com.projecta.mondrianserver.sql;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Cache for materialized query results that is shared by all connections.
+ * Results are keyed by the normalized text of the rewritten sql query, so that
+ * identical queries from different users or Mondrian server instances are
+ * answered from memory.
+ *
+ * The cache is limited by a total byte budget with LRU eviction, entries
+ * expire after a configurable time and the cache is invalidated whenever the
+ * mondrian caches are flushed.
+ */
+public class ResultCache {
+
+    private static final long MB = 1024L * 1024L;
+
+    // cache settings
+    private static volatile boolean enabled;
+    private static volatile long    maxBytes      = 256 * MB;
+    private static volatile long    maxEntryBytes = 16 * MB;
+    private static volatile long    ttlMillis     = 3600 * 1000L;
+
+    // cache entries in LRU order, guarded by the map itself
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes;
+
+    // counts the invalidations, so that results of queries that ran across
+    // one are not added
+    private static final AtomicLong epoch = new AtomicLong();
+
+    // statistics
+    private static final AtomicLong hits      = new AtomicLong();
+    private static final AtomicLong misses    = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+
+    /**
+     * Reads the cache settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        enabled       = config.getBooleanProperty("resultCache.enabled", false);
+        maxBytes      = config.getIntProperty("resultCache.maxSizeMb", 256) * MB;
+        maxEntryBytes = config.getIntProperty("resultCache.maxEntrySizeMb", 16) * MB;
+        ttlMillis     = config.getIntProperty("resultCache.ttlSeconds", 3600) * 1000L;
+    }
+
+
+    /**
+     * Whether query results should be cached
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Maximum size of a single result that is added to the cache
+     */
+    public static long getMaxEntryBytes() {
+        return Math.min(maxEntryBytes, maxBytes);
+    }
+
+
+    /**
+     * Current count of invalidations, to be taken before a query is executed
+     * and passed to {@link #put}
+     */
+    public static long getEpoch() {
+        return epoch.get();
+    }
+
+
+    /**
+     * Retrieves the cached result for the query, or null
+     */
+    public static CachedResult get(String key) {
+
+        synchronized (ENTRIES) {
+            Entry entry = ENTRIES.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+
+            (entry != null ? hits : misses).incrementAndGet();
+            return entry != null ? entry.result : null;
+        }
+    }
+
+
+    /**
+     * Adds a result to the cache, evicting the least recently used entries if
+     * the cache becomes too large. The tables (schema.table, in lower case)
+     * that the query read are used by {@link #invalidate}, null if they are
+     * not known. The result is not added if the cache was invalidated since
+     * the given {@link #getEpoch}, as it may have been read before the change.
+     */
+    public static void put(String key, CachedResult result, Set<String> tables, long queryEpoch) {
+
+        if (!enabled || result.getBytes() > getMaxEntryBytes()) {
+            return;
+        }
+
+        synchronized (ENTRIES) {
+            if (queryEpoch != epoch.get()) {
+                return;
+            }
+            remove(key);
+            ENTRIES.put(key, new Entry(result, System.currentTimeMillis() + ttlMillis, tables));
+            bytes += result.getBytes();
+
+            Iterator<Entry> iterator = ENTRIES.values().iterator();
+            while (bytes > maxBytes && iterator.hasNext()) {
+                bytes -= iterator.next().result.getBytes();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Removes an entry, the caller must hold the lock
+     */
+    private static void remove(String key) {
+
+        Entry entry = ENTRIES.remove(key);
+        if (entry != null) {
+            bytes -= entry.result.getBytes();
+        }
+    }
+
+
+    /**
+     * Removes all entries
+     */
+    public static void clear() {
+
+        synchronized (ENTRIES) {
+            epoch.incrementAndGet();
+            ENTRIES.clear();
+            bytes = 0;
+        }
+    }
+
+
+    /**
+     * Removes the entries of queries that read one of the given tables
+     * (schema.table, in lower case) or whose tables are not known. Returns
+     * the number of removed entries.
+     */
+    public static int invalidate(Set<String> tables) {
+
+        int count = 0;
+        synchronized (ENTRIES) {
+            epoch.incrementAndGet();
+            Iterator<Entry> iterator = ENTRIES.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.tables == null || !Collections.disjoint(entry.tables, tables)) {
+                    bytes -= entry.result.getBytes();
+                    iterator.remove();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Normalizes the sql text to be used as a cache key by collapsing all
+     * whitespace outside of quoted literals and identifiers
+     */
+    public static String normalize(String sql) {
+
+        StringBuilder result = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+
+            if (quote == 0 && Character.isWhitespace(c)) {
+                space = result.length() > 0;
+                continue;
+            }
+            if (space) {
+                result.append(' ');
+                space = false;
+            }
+
+            if (quote == 0 && (c == '\'' || c == '"')) {
+                quote = c;
+            }
+            else if (c == quote) {
+                quote = 0;
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * Returns the cache statistics as text
+     */
+    public static String getStatistics() {
+
+        if (!enabled) {
+            return "Result cache: disabled\n";
+        }
+
+        int entries;
+        long size;
+        synchronized (ENTRIES) {
+            entries = ENTRIES.size();
+            size = bytes;
+        }
+
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+
+        return "Result cache: " + entries + " entries, "
+                + size / MB + " of " + maxBytes / MB + " MB, "
+                + "hits: " + hitCount + ", misses: " + misses.get() + ", "
+                + "hit ratio: " + (total == 0 ? 0 : Math.round(100.0 * hitCount / total)) + " %, "
+                + "evictions: " + evictions.get() + "\n";
+    }
+
+
+    /**
+     * A cached result with its expiry time and the tables it was read from
+     */
+    private static class Entry {
+
+        final CachedResult result;
+        final long         expires;
+        final Set<String>  tables;
+
+        Entry(CachedResult result, long expires, Set<String> tables) {
+            this.result  = result;
+            this.expires = expires;
+            this.tables  = tables;
+        }
+    }
+}
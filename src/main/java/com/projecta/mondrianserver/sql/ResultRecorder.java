@@ -0,0 +1,100 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records the rows of a result set while they are read. The complete result
+ * is added to the {@link ResultCache} and handed to the queries waiting in
+ * {@link InFlightQueries}. Results that are not read to the end or that
+ * exceed the maximum size are discarded.
+ */
+class ResultRecorder {
+
+    private final String                 key;
+    private final Set<String>            tables;
+    private final boolean                cache;
+    private final long                   epoch;
+    private final InFlightQueries.Flight flight;
+    private CachedResult.Builder         builder;
+
+    private static final Logger LOG = Logger.getLogger(ResultRecorder.class);
+
+
+    /**
+     * Creates a recorder that adds the result to the cache (if cache is set)
+     * and publishes it to the waiters of the flight (if not null). The epoch
+     * is the {@link ResultCache#getEpoch} from before the query was executed.
+     */
+    ResultRecorder(String key, Set<String> tables, ResultSet resultSet, boolean cache, InFlightQueries.Flight flight,
+                   long epoch) throws SQLException {
+
+        this.key    = key;
+        this.tables = tables;
+        this.cache  = cache;
+        this.flight = flight;
+        this.epoch  = epoch;
+
+        long maxBytes = Math.max(cache ? ResultCache.getMaxEntryBytes() : 0,
+                                 flight != null ? InFlightQueries.getMaxResultBytes() : 0);
+        this.builder = new CachedResult.Builder(resultSet, maxBytes);
+    }
+
+
+    /**
+     * Records the current row of the result set, reading the given columns
+     * (indexed from 1) as text
+     */
+    void addRow(ResultSet resultSet, boolean[] textColumns) {
+
+        if (builder == null) {
+            return;
+        }
+        try {
+            if (!builder.addRow(resultSet, textColumns)) {
+                abort();
+            }
+        }
+        catch (SQLException e) {
+            LOG.warn("Failed to record result", e);
+            abort();
+        }
+    }
+
+
+    /**
+     * Called after the last row was read
+     */
+    void finish() {
+
+        if (builder != null) {
+            CachedResult result = builder.build();
+            builder = null;
+
+            if (cache) {
+                ResultCache.put(key, result, tables, epoch);
+            }
+            if (flight != null) {
+                // waiters run the query themselves, if the caches were flushed meanwhile
+                flight.complete(epoch == ResultCache.getEpoch() ? result : null);
+            }
+        }
+    }
+
+
+    /**
+     * Stops recording without publishing the result
+     */
+    void abort() {
+
+        if (builder != null) {
+            builder = null;
+            if (flight != null) {
+                flight.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.Set;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * A rule that rewrites the parsed fragments of a query in the
+ * {@link SqlRewriter}. The rules are listed in "sqlRewrite.rules", either by
+ * the name of a built-in rule or by class name, and are applied in that
+ * order. Custom rules need a public constructor without arguments.
+ */
+public interface RewriteRule {
+
+    /**
+     * Name of the rule in the statistics
+     */
+    String getName();
+
+
+    /**
+     * Reads the settings of the rule from the mondrian-server.properties
+     */
+    default void configure(Config config) {
+    }
+
+
+    /**
+     * Names of the column types (pg_type.typname) that the rule looks up with
+     * {@link SqlRewriter#getColumnType}. The columns of these types are loaded
+     * at startup and refreshed in the background.
+     */
+    default Set<String> getColumnTypes() {
+        return Collections.emptySet();
+    }
+
+
+    /**
+     * Rewrites the fragments of the query, returns true if it was modified
+     */
+    boolean apply(SqlRewriter query, Connection con);
+}
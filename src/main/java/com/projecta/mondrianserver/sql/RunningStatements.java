@@ -0,0 +1,74 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the statements that are currently executing a query on the
+ * database on behalf of a Mondrian execution, so that they can be canceled
+ * together with the execution
+ */
+public class RunningStatements {
+
+    private static final Map<Long, Set<StatementProxy>> STATEMENTS = new ConcurrentHashMap<>();
+
+    private static final Logger LOG = Logger.getLogger(RunningStatements.class);
+
+
+    /**
+     * Registers a statement that started executing a query
+     */
+    static void register(long executionId, StatementProxy statement) {
+        STATEMENTS.computeIfAbsent(executionId, id -> ConcurrentHashMap.newKeySet()).add(statement);
+    }
+
+
+    /**
+     * Removes a statement once its query has ended
+     */
+    static void unregister(long executionId, StatementProxy statement) {
+
+        STATEMENTS.computeIfPresent(executionId, (id, statements) -> {
+            statements.remove(statement);
+            return statements.isEmpty() ? null : statements;
+        });
+    }
+
+
+    /**
+     * Cancels all running statements of the execution and returns their
+     * number
+     */
+    public static int cancel(long executionId) {
+
+        Set<StatementProxy> statements = STATEMENTS.get(executionId);
+        if (statements == null) {
+            return 0;
+        }
+
+        int count = 0;
+        for (StatementProxy statement : statements) {
+            try {
+                statement.cancel();
+                count++;
+            }
+            catch (SQLException e) {
+                LOG.warn("Failed to cancel statement of execution " + executionId, e);
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Number of running statements of the execution
+     */
+    public static int getCount(long executionId) {
+        Set<StatementProxy> statements = STATEMENTS.get(executionId);
+        return statements == null ? 0 : statements.size();
+    }
+}
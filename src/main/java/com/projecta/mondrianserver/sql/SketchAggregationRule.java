@@ -0,0 +1,101 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.Set;
+
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+/**
+ * Replaces sum() and count(distinct) aggregations on columns of a sketch type
+ * by a function that evaluates the merged sketches, e.g.
+ * hll_cardinality(hll_union_agg(...)) for hll columns. The function can be
+ * changed with "sqlRewrite.&lt;name&gt;.template", where %s stands for the
+ * column.
+ */
+public class SketchAggregationRule implements RewriteRule {
+
+    private final String    name;
+    private final String    typeName;
+    private volatile String template;
+
+
+    /**
+     * Distinct counts on hll columns of the postgresql-hll extension
+     */
+    public static SketchAggregationRule hll() {
+        return new SketchAggregationRule("hll", "hll", "hll_cardinality(hll_union_agg(%s))");
+    }
+
+
+    /**
+     * Median of tdigest columns of the tdigest extension
+     */
+    public static SketchAggregationRule tdigest() {
+        return new SketchAggregationRule("tdigest", "tdigest", "tdigest_percentile(%s, 0.5)");
+    }
+
+
+    /**
+     * Frequency of the most frequent item of topn columns, which are jsonb
+     * columns of a domain type named topn (create domain topn as jsonb)
+     */
+    public static SketchAggregationRule topn() {
+        return new SketchAggregationRule("topn", "topn",
+                "(select max(value::bigint) from jsonb_each_text(topn_union_agg(%s)))");
+    }
+
+
+    public SketchAggregationRule(String name, String typeName, String template) {
+        this.name     = name;
+        this.typeName = typeName;
+        this.template = template;
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+
+    @Override
+    public void configure(Config config) {
+        template = config.getProperty("sqlRewrite." + name + ".template", template);
+    }
+
+
+    @Override
+    public Set<String> getColumnTypes() {
+        return Collections.singleton(typeName);
+    }
+
+
+    @Override
+    public boolean apply(SqlRewriter query, Connection con) {
+
+        boolean modified = false;
+        for (SqlFragment fragment : query.getFragments()) {
+            // check sum and count distinct expressions
+            if (fragment.getType() != FragmentType.SELECT_AGGREGATION || fragment.getNewText() != null
+                    || !(fragment.getAggFunction().equals("count(distinct")
+                         || fragment.getAggFunction().equals("sum("))) {
+                continue;
+            }
+
+            // check if the aggregated column is of the sketch type
+            SqlFragment table = query.getTable(fragment.getTableAlias());
+            if (table == null || !typeName.equals(query.getColumnType(table, fragment.getColumnName()))) {
+                continue;
+            }
+
+            String column = "\"" + fragment.getTableAlias() + "\".\"" + fragment.getColumnName() + "\"";
+            fragment.setNewText("    " + template.replace("%s", column)
+                    + " as \"" + fragment.getResultAlias() + "\"" + (fragment.hasNext() ? "," : ""));
+            fragment.setHllAggregation("hll".equals(typeName));
+            modified = true;
+        }
+        return modified;
+    }
+}
@@ -0,0 +1,203 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Keeps the most recent queries that took longer than
+ * "slowSql.thresholdMillis", together with the Mondrian execution and user
+ * that sent them. The query plan of every captured query is fetched in the
+ * background with EXPLAIN (FORMAT JSON) on a separate database connection, so
+ * that the query itself is not delayed.
+ */
+public class SlowQueryLog {
+
+    private static volatile int thresholdMillis = 30000;
+    private static volatile int explainTimeout  = 30;
+
+    private static final int MAX_PENDING_EXPLAINS = 20;
+
+    // ring buffer with the captured queries
+    private static Capture[] captures = new Capture[100];
+    private static int       next;
+
+    private static final AtomicLong capturedCount = new AtomicLong();
+    private static final AtomicLong skippedCount  = new AtomicLong();
+
+    private static final Driver DRIVER = new org.postgresql.Driver();
+
+    private static final ExecutorService EXPLAINER = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING_EXPLAINS), r -> {
+                Thread thread = new Thread(r, "SlowQueryLog-explain");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final Logger LOG = Logger.getLogger(SlowQueryLog.class);
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        thresholdMillis = config.getIntProperty("slowSql.thresholdMillis", 30000);
+        explainTimeout  = config.getIntProperty("slowSql.explainTimeoutSeconds", 30);
+
+        int maxEntries = Math.max(1, config.getIntProperty("slowSql.maxEntries", 100));
+        synchronized (SlowQueryLog.class) {
+            if (maxEntries != captures.length) {
+                captures = new Capture[maxEntries];
+                next = 0;
+            }
+        }
+    }
+
+
+    /**
+     * Checks if a query with the given duration should be captured
+     */
+    public static boolean isSlow(long latencyNanos) {
+        return thresholdMillis > 0 && latencyNanos >= thresholdMillis * 1000000L;
+    }
+
+
+    /**
+     * Stores a slow query and schedules the retrieval of its query plan
+     */
+    public static void capture(String sql, long latencyNanos, long rows, boolean failed,
+                               ExecutionContext context, ConnectionProxy connection) {
+
+        Capture capture = new Capture(sql, latencyNanos / 1000000, rows, failed, context);
+        synchronized (SlowQueryLog.class) {
+            captures[next] = capture;
+            next = (next + 1) % captures.length;
+        }
+        capturedCount.incrementAndGet();
+        LOG.info("Slow query (" + capture.millis + " ms, execution " + context.getExecutionId() + ", user "
+                + context.getUserName() + "): " + sql);
+
+        if (connection.getUrl() == null) {
+            return;
+        }
+        try {
+            EXPLAINER.execute(() -> capture.plan = explain(sql, connection.getUrl(), connection.getInfo()));
+        }
+        catch (RejectedExecutionException e) {
+            skippedCount.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Retrieves the query plan of a query on a new database connection
+     */
+    private static String explain(String sql, String url, Properties info) {
+
+        try (Connection connection = DRIVER.connect(url, info);
+             Statement statement = connection.createStatement()) {
+
+            statement.setQueryTimeout(explainTimeout);
+            try (ResultSet resultSet = statement.executeQuery("EXPLAIN (FORMAT JSON) " + sql)) {
+                StringBuilder plan = new StringBuilder();
+                while (resultSet.next()) {
+                    plan.append(resultSet.getString(1));
+                }
+                return plan.toString();
+            }
+        }
+        catch (SQLException | RuntimeException e) {
+            LOG.warn("Failed to explain slow query: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns the captured queries, most recent first
+     */
+    public static List<Map<String, Object>> getCaptures() {
+
+        List<Capture> snapshot = new ArrayList<>();
+        synchronized (SlowQueryLog.class) {
+            for (int i = 1; i <= captures.length; i++) {
+                Capture capture = captures[(next - i + captures.length) % captures.length];
+                if (capture != null) {
+                    snapshot.add(capture);
+                }
+            }
+        }
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Capture capture : snapshot) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("time", capture.time);
+            entry.put("executionId", capture.executionId);
+            entry.put("user", capture.userName);
+            entry.put("millis", capture.millis);
+            entry.put("rows", capture.rows);
+            entry.put("failed", capture.failed);
+            entry.put("sql", capture.sql);
+            entry.put("plan", capture.plan);
+            result.add(entry);
+        }
+        return result;
+    }
+
+
+    /**
+     * Returns the statistics as text
+     */
+    public static String getStatistics() {
+
+        if (thresholdMillis <= 0) {
+            return "Slow queries: disabled\n";
+        }
+        return "Slow queries (> " + thresholdMillis + " ms): " + capturedCount.get() + " captured, "
+                + skippedCount.get() + " not explained\n";
+    }
+
+
+    /**
+     * A captured query
+     */
+    private static class Capture {
+
+        final long      time = System.currentTimeMillis();
+        final String    sql;
+        final long      millis;
+        final long      rows;
+        final boolean   failed;
+        final long      executionId;
+        final String    userName;
+        volatile String plan;
+
+
+        Capture(String sql, long millis, long rows, boolean failed, ExecutionContext context) {
+            this.sql         = sql;
+            this.millis      = millis;
+            this.rows        = rows;
+            this.failed      = failed;
+            this.executionId = context.getExecutionId();
+            this.userName    = context.getUserName();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.projecta.mondrianserver.sql;
+
+/**
+ * Computes the fingerprint of an sql query, which is the same for all queries
+ * that only differ in literal values: string and numeric literals are replaced
+ * by "?", lists of literals by "...", and whitespace is collapsed.
+ *
+ * Example: <code>where "t"."year" in (2019, 2020) and "c"."name" = 'x'</code>
+ * becomes <code>where "t"."year" in (...) and "c"."name" = ?</code>
+ */
+public class SqlFingerprint {
+
+    private SqlFingerprint() {
+    }
+
+
+    /**
+     * Computes the fingerprint of the sql text in a single pass
+     */
+    public static String of(String sql) {
+
+        StringBuilder result = new StringBuilder(Math.min(sql.length(), 4096));
+
+        // position after the last opening bracket, or -1
+        int listStart = -1;
+        boolean space = false;
+
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+
+            // collapse whitespace
+            if (Character.isWhitespace(c)) {
+                space = result.length() > 0;
+                continue;
+            }
+            if (space) {
+                space = false;
+                if (c != ')' && c != ',' && result.charAt(result.length() - 1) != '(') {
+                    result.append(' ');
+                }
+            }
+
+            // copy quoted identifiers
+            if (c == '"') {
+                int end = sql.indexOf('"', i + 1);
+                end = end < 0 ? length - 1 : end;
+                result.append(sql, i, end + 1);
+                i = end;
+                continue;
+            }
+
+            // replace string literals, including escaped quotes
+            if (c == '\'') {
+                int end = i + 1;
+                while (end < length && (sql.charAt(end) != '\'' || (end + 1 < length && sql.charAt(end + 1) == '\''))) {
+                    end += sql.charAt(end) == '\'' ? 2 : 1;
+                }
+                result.append('?');
+                i = end;
+                continue;
+            }
+
+            // replace numeric literals that are not part of an identifier
+            if (Character.isDigit(c) && !isIdentifierChar(result)) {
+                int end = i + 1;
+                while (end < length && (Character.isDigit(sql.charAt(end)) || sql.charAt(end) == '.')) {
+                    end++;
+                }
+                result.append('?');
+                i = end - 1;
+                continue;
+            }
+
+            // collapse lists of literals
+            if (c == '(') {
+                result.append(c);
+                listStart = result.length();
+                continue;
+            }
+            if (c == ')' && listStart >= 0 && isLiteralList(result, listStart)) {
+                result.setLength(listStart);
+                result.append("...)");
+                listStart = -1;
+                continue;
+            }
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * Checks if the last character can continue an identifier
+     */
+    private static boolean isIdentifierChar(StringBuilder text) {
+
+        if (text.length() == 0) {
+            return false;
+        }
+        char c = text.charAt(text.length() - 1);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+
+    /**
+     * Checks if the text from start on only consists of replaced literals
+     */
+    private static boolean isLiteralList(StringBuilder text, int start) {
+
+        if (start >= text.length()) {
+            return false;
+        }
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '?' && c != ',' && c != ' ' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
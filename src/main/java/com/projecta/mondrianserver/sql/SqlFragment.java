@@ -18,6 +18,8 @@ public class SqlFragment {
     private String       joinedTableAlias;
     private String       joinedColumnName;
     private boolean      hasNext;
+    private boolean      hllAggregation;
+    private boolean      doubleCast;
 
 
     public enum FragmentType {
@@ -50,6 +52,23 @@ public class SqlFragment {
         this.type = FragmentType.UNPARSED_EXPRESSION;
     }
 
+
+    /**
+     * Copies the parsed information, but not the text, from another fragment
+     */
+    public void copyClassification(SqlFragment other) {
+        this.type             = other.type;
+        this.tableAlias       = other.tableAlias;
+        this.columnName       = other.columnName;
+        this.resultAlias      = other.resultAlias;
+        this.aggFunction      = other.aggFunction;
+        this.schemaName       = other.schemaName;
+        this.tableName        = other.tableName;
+        this.joinedTableAlias = other.joinedTableAlias;
+        this.joinedColumnName = other.joinedColumnName;
+        this.hasNext          = other.hasNext;
+    }
+
     public FragmentType getType() {
         return type;
     }
@@ -66,6 +85,14 @@ public class SqlFragment {
         this.text = text;
     }
 
+    /**
+     * Returns the new text if the fragment was rewritten, otherwise the
+     * original text
+     */
+    public String getCurrentText() {
+        return newText != null ? newText : text;
+    }
+
     public String getNewText() {
         return newText;
     }
@@ -146,4 +173,19 @@ public class SqlFragment {
         this.joinedColumnName = joinedColumnName;
     }
 
+    public boolean isHllAggregation() {
+        return hllAggregation;
+    }
+
+    public void setHllAggregation(boolean hllAggregation) {
+        this.hllAggregation = hllAggregation;
+    }
+
+    public boolean isDoubleCast() {
+        return doubleCast;
+    }
+
+    public void setDoubleCast(boolean doubleCast) {
+        this.doubleCast = doubleCast;
+    }
 }
@@ -0,0 +1,643 @@
+package com.projecta.mondrianserver.sql;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
+
+/**
+ * Single pass parser for the queries generated by Mondrian. The query is split
+ * into keywords (select, from, where, and, group by, order by) and the items
+ * between them, so it does not matter whether the sql was formatted by
+ * Mondrian or not. Items are then classified (aggregations, tables, join
+ * conditions, filter conditions) without regular expressions.
+ *
+ * Queries that only differ in literal values have the same classification, so
+ * the classification is cached by the {@link SqlFingerprint} of the query.
+ */
+public class SqlParser {
+
+    private static final String INDENT = "    ";
+
+    private static final int MAX_CACHED_SHAPES = 2000;
+
+    // fragment classifications by query fingerprint, in LRU order
+    private static final Map<String, SqlFragment[]> SHAPES = new LinkedHashMap<String, SqlFragment[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SqlFragment[]> eldest) {
+            return size() > MAX_CACHED_SHAPES;
+        }
+    };
+
+    private static long parseCount;
+    private static long shapeHitCount;
+
+
+    private SqlParser() {
+    }
+
+
+    /**
+     * Parses the query into classified fragments
+     */
+    public static List<SqlFragment> parse(String sql, String fingerprint) {
+
+        List<FragmentType> sections = new ArrayList<>();
+        List<SqlFragment> fragments = split(sql, sections);
+
+        SqlFragment[] shape;
+        synchronized (SHAPES) {
+            parseCount++;
+            shape = SHAPES.get(fingerprint);
+            if (shape != null && shape.length == fragments.size()) {
+                shapeHitCount++;
+            }
+        }
+
+        if (shape != null && shape.length == fragments.size()) {
+            for (int i = 0; i < shape.length; i++) {
+                fragments.get(i).copyClassification(shape[i]);
+            }
+            return fragments;
+        }
+
+        shape = new SqlFragment[fragments.size()];
+        for (int i = 0; i < shape.length; i++) {
+            SqlFragment fragment = fragments.get(i);
+            if (fragment.getType() == FragmentType.UNPARSED_EXPRESSION) {
+                classify(fragment, sections.get(i));
+            }
+            shape[i] = new SqlFragment(null);
+            shape[i].copyClassification(fragment);
+        }
+        synchronized (SHAPES) {
+            SHAPES.put(fingerprint, shape);
+        }
+        return fragments;
+    }
+
+
+    /**
+     * Number of parsed queries and queries with a cached classification
+     */
+    public static String getStatistics() {
+        synchronized (SHAPES) {
+            return parseCount + " parsed, " + shapeHitCount + " shape cache hits, " + SHAPES.size() + " shapes";
+        }
+    }
+
+
+    /**
+     * Clears the cached classifications
+     */
+    public static void clearCache() {
+        synchronized (SHAPES) {
+            SHAPES.clear();
+        }
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Tokenizer
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Splits the query into keyword and item fragments. Items are split at
+     * commas in the select, from, group by and order by lists and at "and" in
+     * the where clause, but never inside of brackets or quotes. The section of
+     * every fragment is added to sections.
+     */
+    private static List<SqlFragment> split(String sql, List<FragmentType> sections) {
+
+        List<SqlFragment> fragments = new ArrayList<>();
+        FragmentType section = null;
+        boolean list = false;
+        boolean between = false;
+        int depth = 0;
+        int itemStart = -1;
+
+        int length = sql.length();
+        for (int i = 0; i < length; i++) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+
+            // keywords are only recognized outside of brackets
+            if (depth == 0 && Character.isLetter(c) && (i == 0 || !isIdentifierChar(sql.charAt(i - 1)))) {
+                int end = -1;
+                FragmentType type = null;
+                String keyword = null;
+
+                if ((end = matchWords(sql, i, "select", "distinct")) > 0) {
+                    keyword = "select distinct";
+                }
+                else if ((end = matchWords(sql, i, "select")) > 0) {
+                    keyword = "select";
+                    type = FragmentType.SELECT_KEWORD;
+                }
+                else if ((end = matchWords(sql, i, "from")) > 0) {
+                    keyword = "from";
+                    type = FragmentType.FROM_KEWORD;
+                }
+                else if ((end = matchWords(sql, i, "where")) > 0) {
+                    keyword = "where";
+                    type = FragmentType.WHERE_KEWORD;
+                }
+                else if ((end = matchWords(sql, i, "group", "by")) > 0) {
+                    keyword = "group by";
+                    type = FragmentType.GROUP_BY_KEWORD;
+                }
+                else if ((end = matchWords(sql, i, "order", "by")) > 0) {
+                    keyword = "order by";
+                    type = FragmentType.ORDER_BY_KEWORD;
+                }
+                else if ((end = matchWords(sql, i, "having")) > 0) {
+                    keyword = "having";
+                }
+                else if ((end = matchWords(sql, i, "limit")) > 0) {
+                    keyword = "limit";
+                }
+                else if ((end = matchWords(sql, i, "between")) > 0) {
+                    // the next "and" belongs to the between
+                    between = true;
+                    end = -1;
+                }
+                else if ((end = matchWords(sql, i, "and")) > 0) {
+                    if (between || (section != FragmentType.WHERE_KEWORD && section != FragmentType.AND_KEWORD)) {
+                        between = false;
+                        end = -1;
+                    }
+                    else {
+                        keyword = "and";
+                        type = FragmentType.AND_KEWORD;
+                    }
+                }
+
+                if (keyword != null) {
+                    addItem(fragments, sections, section, sql, itemStart, i, false);
+                    itemStart = -1;
+
+                    SqlFragment fragment = new SqlFragment(keyword);
+                    if (type != null) {
+                        fragment.setType(type);
+                    }
+                    fragments.add(fragment);
+                    sections.add(type);
+
+                    section = type;
+                    list = type == FragmentType.SELECT_KEWORD || type == FragmentType.FROM_KEWORD
+                        || type == FragmentType.GROUP_BY_KEWORD || type == FragmentType.ORDER_BY_KEWORD;
+                    i = end - 1;
+                    continue;
+                }
+                if (end > 0) {
+                    if (itemStart < 0) {
+                        itemStart = i;
+                    }
+                    i = end - 1;
+                    continue;
+                }
+            }
+
+            if (itemStart < 0) {
+                itemStart = i;
+            }
+
+            switch (c) {
+            case '\'':
+                i = skipQuoted(sql, i, '\'');
+                break;
+            case '"':
+                i = skipQuoted(sql, i, '"');
+                break;
+            case '(':
+                depth++;
+                break;
+            case ')':
+                depth--;
+                break;
+            case ',':
+                if (depth == 0 && list) {
+                    addItem(fragments, sections, section, sql, itemStart, i, true);
+                    itemStart = -1;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        addItem(fragments, sections, section, sql, itemStart, length, false);
+        return fragments;
+    }
+
+
+    /**
+     * Adds the item between start and end as a fragment that is formatted
+     * like a line of the sql formatted by Mondrian
+     */
+    private static void addItem(List<SqlFragment> fragments, List<FragmentType> sections, FragmentType section,
+                                String sql, int start, int end, boolean comma) {
+
+        if (start < 0) {
+            return;
+        }
+        while (end > start && Character.isWhitespace(sql.charAt(end - 1))) {
+            end--;
+        }
+        SqlFragment fragment = new SqlFragment(INDENT + sql.substring(start, end) + (comma ? "," : ""));
+        fragments.add(fragment);
+        sections.add(section);
+    }
+
+
+    /**
+     * Checks if the words appear at the position, separated by whitespace,
+     * and returns the end position or -1
+     */
+    private static int matchWords(String sql, int pos, String... words) {
+
+        for (int w = 0; w < words.length; w++) {
+            if (w > 0) {
+                int next = skipSpaces(sql, pos);
+                if (next == pos) {
+                    return -1;
+                }
+                pos = next;
+            }
+            String word = words[w];
+            if (!sql.regionMatches(true, pos, word, 0, word.length())) {
+                return -1;
+            }
+            pos += word.length();
+            if (pos < sql.length() && isIdentifierChar(sql.charAt(pos))) {
+                return -1;
+            }
+        }
+        return pos;
+    }
+
+
+    /**
+     * Returns the position of the closing quote, handling doubled quotes
+     */
+    private static int skipQuoted(String sql, int pos, char quote) {
+
+        int i = pos + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i;
+            }
+            i++;
+        }
+        return sql.length() - 1;
+    }
+
+
+    private static int skipSpaces(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Classification
+    // ------------------------------------------------------------------------
+
+
+    /**
+     * Determines the type of an item fragment from the section it appears in
+     */
+    private static void classify(SqlFragment fragment, FragmentType section) {
+
+        if (section == null) {
+            return;
+        }
+
+        String text = removeComments(fragment.getText()).trim();
+        boolean hasNext = text.endsWith(",");
+        if (hasNext) {
+            text = text.substring(0, text.length() - 1);
+        }
+
+        switch (section) {
+        case SELECT_KEWORD:
+            classifySelect(fragment, text, hasNext);
+            break;
+        case FROM_KEWORD:
+            classifyTable(fragment, text);
+            break;
+        case WHERE_KEWORD:
+        case AND_KEWORD:
+            classifyCondition(fragment, text);
+            break;
+        default:
+            break;
+        }
+    }
+
+
+    /**
+     * Removes comments, e.g. the markers that the SchemaProcessor adds to
+     * measure expressions
+     */
+    private static String removeComments(String text) {
+
+        int start = text.indexOf("/*");
+        while (start >= 0) {
+            int end = text.indexOf("*/", start + 2);
+            if (end < 0) {
+                break;
+            }
+            int next = end + 2;
+            // avoid joining the words before and after the comment
+            while (next < text.length() && text.charAt(next) == ' ' && start > 0 && text.charAt(start - 1) == ' ') {
+                next++;
+            }
+            text = text.substring(0, start) + text.substring(next);
+            start = text.indexOf("/*", start);
+        }
+        return text;
+    }
+
+
+    /**
+     * Aggregations: <code>func("alias"."column") as "result"</code>, and
+     * columns: <code>"alias"."column" as "result"</code>
+     */
+    private static void classifySelect(SqlFragment fragment, String text, boolean hasNext) {
+
+        // the function part only consists of words, spaces and brackets
+        int pos = 0;
+        while (pos < text.length() && text.charAt(pos) != '"') {
+            char c = text.charAt(pos);
+            if (!isIdentifierChar(c) && c != ' ' && c != '(') {
+                return;
+            }
+            pos++;
+        }
+        String function = text.substring(0, pos).trim();
+
+        String[] column = new String[2];
+        pos = matchColumn(text, pos, column);
+        if (pos < 0) {
+            return;
+        }
+        if (!function.isEmpty()) {
+            if (pos >= text.length() || text.charAt(pos) != ')') {
+                return;
+            }
+            pos++;
+        }
+
+        String[] result = new String[1];
+        pos = matchKeyword(text, pos, "as");
+        pos = pos < 0 ? -1 : matchIdentifier(text, skipSpaces(text, pos), result);
+        if (pos != text.length()) {
+            return;
+        }
+
+        fragment.setType(function.isEmpty() ? FragmentType.SELECT_EXPRESSION : FragmentType.SELECT_AGGREGATION);
+        fragment.setAggFunction(function.isEmpty() ? null : function);
+        fragment.setTableAlias(column[0]);
+        fragment.setColumnName(column[1]);
+        fragment.setResultAlias(result[0]);
+        fragment.setHasNext(hasNext);
+    }
+
+
+    /**
+     * Tables: <code>"schema"."table" as "alias"</code>
+     */
+    private static void classifyTable(SqlFragment fragment, String text) {
+
+        String[] table = new String[2];
+        String[] alias = new String[1];
+        int pos = matchColumn(text, 0, table);
+        pos = pos < 0 ? -1 : matchKeyword(text, pos, "as");
+        pos = pos < 0 ? -1 : matchIdentifier(text, skipSpaces(text, pos), alias);
+        if (pos != text.length()) {
+            return;
+        }
+
+        fragment.setType(FragmentType.TABLE);
+        fragment.setSchemaName(table[0]);
+        fragment.setTableName(table[1]);
+        fragment.setTableAlias(alias[0]);
+    }
+
+
+    /**
+     * Join conditions: <code>"alias"."column" = "alias"."column"</code>, and
+     * filter conditions: <code>"alias"."column" = literal</code> or
+     * <code>"alias"."column" in (literal, ...)</code>, optionally in brackets
+     */
+    private static void classifyCondition(SqlFragment fragment, String text) {
+
+        String[] column = new String[2];
+        int pos = matchColumn(text, 0, column);
+        if (pos >= 0) {
+            int next = skipSpaces(text, pos);
+            if (next < text.length() && text.charAt(next) == '=') {
+                String[] joined = new String[2];
+                if (matchColumn(text, skipSpaces(text, next + 1), joined) == text.length()) {
+                    fragment.setType(FragmentType.JOIN_CONDITION);
+                    fragment.setTableAlias(column[0]);
+                    fragment.setColumnName(column[1]);
+                    fragment.setJoinedTableAlias(joined[0]);
+                    fragment.setJoinedColumnName(joined[1]);
+                    return;
+                }
+            }
+        }
+
+        // sometimes conditions are in brackets
+        if (text.startsWith("(") && text.endsWith(")")) {
+            text = text.substring(1, text.length() - 1).trim();
+        }
+
+        pos = matchColumn(text, 0, column);
+        if (pos < 0) {
+            return;
+        }
+        int next = skipSpaces(text, pos);
+
+        if (next < text.length() && text.charAt(next) == '=') {
+            pos = matchLiterals(text, skipSpaces(text, next + 1));
+        }
+        else if ((pos = matchKeyword(text, pos, "in")) > 0) {
+            pos = skipSpaces(text, pos);
+            if (pos >= text.length() || text.charAt(pos) != '(') {
+                return;
+            }
+            do {
+                pos = matchLiterals(text, skipSpaces(text, pos + 1));
+                pos = pos < 0 ? -1 : skipSpaces(text, pos);
+            }
+            while (pos >= 0 && pos < text.length() && text.charAt(pos) == ',');
+
+            pos = pos >= 0 && pos < text.length() && text.charAt(pos) == ')' ? pos + 1 : -1;
+        }
+        else {
+            return;
+        }
+
+        if (pos == text.length()) {
+            fragment.setType(FragmentType.CONDITION);
+            fragment.setTableAlias(column[0]);
+            fragment.setColumnName(column[1]);
+        }
+    }
+
+
+    /**
+     * Extracts the literal values of a filter condition, e.g. the list of
+     * values of an "in" condition, or returns null if it is no such condition
+     */
+    public static List<String> getConditionLiterals(String text) {
+
+        text = text.trim();
+        if (text.startsWith("(") && text.endsWith(")")) {
+            text = text.substring(1, text.length() - 1).trim();
+        }
+
+        int pos = matchColumn(text, 0, new String[2]);
+        if (pos < 0) {
+            return null;
+        }
+        int next = skipSpaces(text, pos);
+        List<String> literals = new ArrayList<>();
+
+        if (next < text.length() && text.charAt(next) == '=') {
+            int start = skipSpaces(text, next + 1);
+            pos = matchLiterals(text, start);
+            if (pos < 0) {
+                return null;
+            }
+            literals.add(text.substring(start, pos));
+        }
+        else if ((pos = matchKeyword(text, pos, "in")) > 0) {
+            pos = skipSpaces(text, pos);
+            if (pos >= text.length() || text.charAt(pos) != '(') {
+                return null;
+            }
+            do {
+                int start = skipSpaces(text, pos + 1);
+                pos = matchLiterals(text, start);
+                if (pos < 0) {
+                    return null;
+                }
+                literals.add(text.substring(start, pos));
+                pos = skipSpaces(text, pos);
+            }
+            while (pos < text.length() && text.charAt(pos) == ',');
+
+            if (pos >= text.length() || text.charAt(pos) != ')') {
+                return null;
+            }
+            pos++;
+        }
+        else {
+            return null;
+        }
+        return pos == text.length() ? literals : null;
+    }
+
+
+    /**
+     * Matches <code>"a"."b"</code> at the position and returns the end
+     * position or -1
+     */
+    private static int matchColumn(String text, int pos, String[] names) {
+
+        String[] name = new String[1];
+        pos = matchIdentifier(text, pos, name);
+        if (pos < 0 || pos >= text.length() || text.charAt(pos) != '.') {
+            return -1;
+        }
+        names[0] = name[0];
+        pos = matchIdentifier(text, pos + 1, name);
+        names[1] = name[0];
+        return pos;
+    }
+
+
+    /**
+     * Matches a quoted identifier consisting of word characters and returns
+     * the end position or -1
+     */
+    private static int matchIdentifier(String text, int pos, String[] name) {
+
+        if (pos < 0 || pos >= text.length() || text.charAt(pos) != '"') {
+            return -1;
+        }
+        int end = pos + 1;
+        while (end < text.length() && isIdentifierChar(text.charAt(end))) {
+            end++;
+        }
+        if (end == pos + 1 || end >= text.length() || text.charAt(end) != '"') {
+            return -1;
+        }
+        name[0] = text.substring(pos + 1, end);
+        return end + 1;
+    }
+
+
+    /**
+     * Matches a keyword that follows whitespace and returns the position
+     * after it or -1
+     */
+    private static int matchKeyword(String text, int pos, String keyword) {
+
+        int start = skipSpaces(text, pos);
+        if (start == pos && pos > 0) {
+            return -1;
+        }
+        int end = matchWords(text, start, keyword);
+        return end < 0 || end >= text.length() ? -1 : end;
+    }
+
+
+    /**
+     * Matches a literal value consisting of string literals and words (e.g.
+     * numbers, true or DATE '2020-01-01') and returns the end position or -1
+     */
+    private static int matchLiterals(String text, int pos) {
+
+        int start = pos;
+        int end = pos;
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (c == '\'') {
+                pos = skipQuoted(text, pos, '\'') + 1;
+                end = pos;
+            }
+            else if (isIdentifierChar(c) || c == '.' || c == '-') {
+                pos++;
+                end = pos;
+            }
+            else if (c == ' ') {
+                pos++;
+            }
+            else {
+                break;
+            }
+        }
+        return end > start ? end : -1;
+    }
+}
@@ -1,26 +1,20 @@
 package com.projecta.mondrianserver.sql;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
-import org.postgresql.util.PGobject;
+
+import com.projecta.mondrianserver.config.Config;
 
 /**
- * A dynamic proxy that registers itself as the Postgres JDBC driver and
- * intercepts calls {@link Driver}, {@link Connection}, {@link Statement}
- * and {@link ResultSet}.
+ * Registers a {@link DriverProxy} as the Postgres JDBC driver, which
+ * intercepts calls to {@link Driver}, {@link Connection}, {@link Statement}
+ * and {@link ResultSet} with plain delegating wrappers.
  *
  * The proxy uses the {@link SqlRewriter} to modify queries on HLL queries and
  * returns the value of enum columns as text in result sets.
@@ -50,7 +44,7 @@ public class SqlProxy {
         }
 
         try {
-            DriverManager.registerDriver(createProxy(new DriverProxy(), Driver.class));
+            DriverManager.registerDriver(new DriverProxy());
         }
         catch (SQLException e) {
             LOG.error(e, e);
@@ -59,157 +53,19 @@ public class SqlProxy {
 
 
     /**
-     * Creates a new proxy instance
-     */
-    public static <T> T createProxy(InvocationHandler proxy, Class<T> clazz) {
-        return (T) Proxy.newProxyInstance(SqlProxy.class.getClassLoader(), new Class[] { clazz }, proxy );
-    }
-
-
-    /**
-     * Proxy class to intercept calls to java.sql.Driver
-     */
-    public static class DriverProxy implements InvocationHandler {
-
-        private Driver driver;
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-
-            try {
-                if (method.getName().equals("toString")) {
-                    return SqlProxy.class.getName();
-                }
-
-                // proxy the postgres driver
-                if (driver == null) {
-                    driver = new org.postgresql.Driver();
-                }
-
-                // proxy every connection
-                if (method.getName().equals("connect") && StringUtils.startsWithIgnoreCase((String) args[0], "jdbc:postgresql")) {
-                    Connection connection = (Connection) method.invoke(driver, args);
-                    return createProxy(new ConnectionProxy(connection), Connection.class);
-                }
-
-                // dont do anything different
-                return method.invoke(driver, args);
-            }
-            catch (InvocationTargetException e) {
-                throw e.getCause();
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
-    }
-
-
-    /**
-     * Proxy class to intercept calls to java.sql.Connection
-     */
-    public static class ConnectionProxy implements InvocationHandler {
-
-        Connection connection;
-
-        public ConnectionProxy(Connection connection) {
-            this.connection = connection;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-
-            try {
-                Object result = method.invoke(connection, args);
-
-                // create a proxy for every Statement object
-                if (result instanceof Statement) {
-                    Class<?> interfaceClass = result instanceof CallableStatement ? CallableStatement.class
-                                            : result instanceof PreparedStatement ? PreparedStatement.class
-                                            : Statement.class;
-                    return createProxy(new StatementProxy(connection, (Statement) result), interfaceClass);
-                }
-                return result;
-            }
-            catch (InvocationTargetException e) {
-                throw e.getCause();
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
-    }
-
-
-    /**
-     * Proxy class to intercept calls to java.sql.Statement
+     * Applies the settings from the mondrian-server.properties. Calling this
+     * also makes sure that the proxy driver is registered.
      */
-    public static class StatementProxy implements InvocationHandler {
-
-        Connection connection;
-        Statement statement;
-
-        public StatementProxy(Connection connection, Statement statement) {
-            this.connection = connection;
-            this.statement = statement;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-
-            try {
-                if (method.getName().equals("executeQuery")) {
-                    SqlRewriter rewriter = new SqlRewriter();
-                    args[0] = rewriter.rewrite((String) args[0], connection);
-                }
-
-                Object result = method.invoke(statement, args);
-
-                // create a proxy for every ResultSet object
-                if (result instanceof ResultSet) {
-                    return createProxy(new ResultSetProxy((ResultSet) result), ResultSet.class);
-                }
-                return result;
-            }
-            catch (InvocationTargetException e) {
-                throw e.getCause();
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
-    }
-
-
-    /**
-     * Proxy class to intercept calls to java.sql.ResultSet
-     */
-    public static class ResultSetProxy implements InvocationHandler {
-
-        ResultSet resultSet;
-
-        public ResultSetProxy(ResultSet resultSet) {
-            this.resultSet = resultSet;
-        }
-
-        @Override
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-
-            try {
-                Object result = method.invoke(resultSet, args);
-
-                if (result instanceof PGobject) {
-                    // make getObject() return String values instead of PgObject
-                    return ((PGobject) result).getValue();
-                }
-                return result;
-            }
-            catch (InvocationTargetException e) {
-                throw e.getCause();
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
+    public static void configure(Config config) {
+        ConnectionPool.configure(config);
+        ResultCache.configure(config);
+        InFlightQueries.configure(config);
+        StreamingFetch.configure(config);
+        SqlStatistics.configure(config);
+        SlowQueryLog.configure(config);
+        ConcurrencyLimiter.configure(config);
+        ParallelSplit.configure(config);
+        GroupingSetsBatcher.configure(config);
+        SqlRewriter.configure(config);
     }
 }
@@ -1,29 +1,60 @@
 package com.projecta.mondrianserver.sql;
 
 import java.sql.Connection;
+import java.sql.Driver;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
+import com.projecta.mondrianserver.config.Config;
 import com.projecta.mondrianserver.sql.SqlFragment.FragmentType;
 
 import mondrian.rolap.RolapUtil;
 import mondrian.util.Pair;
 
 /**
- * The SqlRewriter parses the queries generated by Mondrian. If it detects
- * aggregations like sum() or count(distinct) on a field of type hll, they are
- * replaced by calls to hll_cardinality() before execution.
+ * The SqlRewriter parses the queries generated by Mondrian with the
+ * {@link SqlParser} and applies the {@link RewriteRule}s configured in
+ * "sqlRewrite.rules" to the fragments before execution. The built-in rules
+ * are:
+ *
+ * <ul>
+ * <li>hll, tdigest, topn: aggregations on sketch columns are replaced by
+ * functions that evaluate the merged sketches ({@link SketchAggregationRule})</li>
+ * <li>approximateDistinct: distinct counts of measures with the annotation
+ * "approximateDistinctCount" are calculated approximately
+ * ({@link ApproximateDistinctCountRule})</li>
+ * <li>doubleAggregates: aggregations of Numeric measures are cast to double
+ * precision ({@link DoubleAggregationRule})</li>
+ * <li>joinElimination: joins with small dimension tables that are only used
+ * for filtering are replaced by a condition on the foreign key of the fact
+ * table, only if enabled, as it uses a snapshot of the dimension table
+ * ({@link JoinEliminationRule})</li>
+ * <li>keyRanges: for the other filtered dimensions, the range of their
+ * matching keys is added as a condition on the fact table
+ * ({@link KeyRangeRule})</li>
+ * <li>inListArrays: long "in" lists are replaced by a comparison with a single
+ * array value ({@link ArrayInListRule})</li>
+ * </ul>
  */
 public class SqlRewriter {
 
@@ -32,37 +63,168 @@ public class SqlRewriter {
     private Map<String, SqlFragment> aliases;
     private Map<String, SqlFragment> joins;
     private boolean                  modified;
+    private QueryType                queryType = QueryType.OTHER;
+    private String                   fingerprint;
+    private String                   result;
+    private Set<String>              tableNames;
+    private Map<String, String>      datatypes;
 
-    // database caches
-    static volatile Set<String>                   hyperLogLogColumnsCache = null;
-    static volatile Map<String, Boolean>          dimensionTablesCache    = new HashMap<>();
-    static volatile Map<String, Pair<Long, Long>> dimensionRangesCache    = new HashMap<>();
-    static volatile long                          dimensionRangesCacheTTL = 0;
+    // rewrite rules in the order of execution
+    private static final String DEFAULT_RULES = "hll, tdigest, topn, approximateDistinct, doubleAggregates, keyRanges, aggregateTables, inListArrays";
+    private static volatile List<RuleStatistics> rules = createRules(DEFAULT_RULES, null);
 
+    // database caches
+    static volatile Map<String, String>            columnTypesCache     = Collections.emptyMap();
+    static volatile Set<String>                    columnTypeNames;      // set by createRules()
+    static volatile Map<String, String>            measureDatatypes     = Collections.emptyMap();
+    static final Map<Integer, Map<String, String>> generationDatatypes  = new ConcurrentHashMap<>();
+    static volatile Map<String, DimensionSnapshot> dimensionTablesCache = new ConcurrentHashMap<>();
+    static volatile Map<String, DimensionRange>    dimensionRangesCache = new ConcurrentHashMap<>();
+
+    // column metadata, loaded at startup and replaced by a background refresh
+    private static volatile String  metadataUrl;
+    private static volatile int     metadataRefreshSeconds = 300;
+    private static volatile boolean metadataLoaded;
+    private static volatile long    metadataLoadTime;
+    private static volatile long    metadataLoadMillis;
+    private static volatile long    metadataAttemptTime;
+    private static ScheduledFuture<?> metadataRefreshTask;
+
+    private static final AtomicBoolean metadataRefreshPending = new AtomicBoolean();
+    private static final ScheduledExecutorService METADATA_LOADER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SqlRewriter-metadata");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // dimension tables, loaded in the background and used while they are fresh
+    private static volatile int      dimensionTableSeconds  = 60;
+    private static final AtomicLong  dimensionGeneration    = new AtomicLong();
+    private static final Set<String> dimensionTablesPending = ConcurrentHashMap.newKeySet();
+    private static final ExecutorService DIMENSION_LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SqlRewriter-dimensions");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Driver DRIVER = new org.postgresql.Driver();
+
+    private static final int METADATA_RETRY_MILLIS                 = 10000; // 10 seconds
     private static final int MAX_DIM_TABLE_SIZE                    = 10000;
     private static final int DIMENSION_RANGES_CACHE_TIMEOUT_MILLIS = 10000; // 10 seconds
+    private static final int MAX_DIMENSION_RANGES                  = 1000;
+
+    // statistics
+    private static final AtomicLong rewriteCount = new AtomicLong();
+    private static final AtomicLong rewriteNanos = new AtomicLong();
 
-    // parser constants
-    static final Map<String, FragmentType> KEYWORDS = new HashMap<>();
+    private static final String NL = System.getProperty("line.separator");
+    private static final Logger LOG = Logger.getLogger( SqlRewriter.class );
 
-    static {
-        KEYWORDS.put("select",   FragmentType.SELECT_KEWORD);
-        KEYWORDS.put("from",     FragmentType.FROM_KEWORD);
-        KEYWORDS.put("where",    FragmentType.WHERE_KEWORD);
-        KEYWORDS.put("and",      FragmentType.AND_KEWORD);
-        KEYWORDS.put("group by", FragmentType.GROUP_BY_KEWORD);
-        KEYWORDS.put("order by", FragmentType.ORDER_BY_KEWORD);
+
+    /**
+     * The kinds of queries that Mondrian generates
+     */
+    public enum QueryType {
+        /** aggregations of fact values, e.g. segment loads */
+        SEGMENT_LOAD,
+        /** lists of dimension members */
+        MEMBER,
+        /** fact rows without aggregation, e.g. drillthrough */
+        DRILLTHROUGH,
+        /** anything that could not be classified */
+        OTHER
     }
 
-    private static final Pattern TABLE_PATTERN              = Pattern.compile("\"(\\w+)\".\"(\\w+)\" as \"(\\w+)\",?");
-    private static final Pattern SELECT_AGGREGATION_PATTERN = Pattern.compile("([\\w (]+)\"(\\w+)\".\"(\\w+)\"\\) as \"(\\w+)\"(,)?");
 
-    private static final Pattern JOIN_CONDITION_PATTERN     = Pattern.compile("\"(\\w+)\".\"(\\w+)\" = \"(\\w+)\".\"(\\w+)\"");
-    private static final Pattern EQUALS_CONDITION_PATTERN   = Pattern.compile("\"(\\w+)\".\"(\\w+)\" = [\\w' ]+");
-    private static final Pattern IN_CONDITION_PATTERN       = Pattern.compile("\"(\\w+)\".\"(\\w+)\" in \\([\\w', ]+\\)");
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
 
-    private static final String NL = System.getProperty("line.separator");
-    private static final Logger LOG = Logger.getLogger( SqlRewriter.class );
+        rules = createRules(config.getProperty("sqlRewrite.rules", DEFAULT_RULES), config);
+        metadataUrl = config.getProperty("databaseUrl");
+        metadataRefreshSeconds = config.getIntProperty("sqlRewrite.metadataRefreshSeconds", 300);
+        dimensionTableSeconds = config.getIntProperty("sqlRewrite.dimensionTableSeconds", 60);
+
+        // the first load happens before any query is executed
+        if (!metadataLoaded) {
+            loadColumnTypes();
+        }
+        else {
+            refreshColumnTypes();
+        }
+
+        synchronized (SqlRewriter.class) {
+            if (metadataRefreshTask != null) {
+                metadataRefreshTask.cancel(false);
+                metadataRefreshTask = null;
+            }
+            if (metadataRefreshSeconds > 0) {
+                metadataRefreshTask = METADATA_LOADER.scheduleWithFixedDelay(SqlRewriter::loadColumnTypes,
+                        metadataRefreshSeconds, metadataRefreshSeconds, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+
+    /**
+     * Creates the rules from a comma separated list of rule names or class
+     * names
+     */
+    private static List<RuleStatistics> createRules(String names, Config config) {
+
+        List<RuleStatistics> result = new ArrayList<>();
+        Set<String> typeNames = new HashSet<>();
+        for (String name : StringUtils.split(names, ", ")) {
+            RewriteRule rule;
+            switch (name) {
+            case "hll":
+                rule = SketchAggregationRule.hll();
+                break;
+            case "tdigest":
+                rule = SketchAggregationRule.tdigest();
+                break;
+            case "topn":
+                rule = SketchAggregationRule.topn();
+                break;
+            case "approximateDistinct":
+                rule = new ApproximateDistinctCountRule();
+                break;
+            case "doubleAggregates":
+                rule = new DoubleAggregationRule();
+                break;
+            case "joinElimination":
+                rule = new JoinEliminationRule();
+                break;
+            case "keyRanges":
+                rule = new KeyRangeRule();
+                break;
+            case "aggregateTables":
+                rule = new AggregateTableRule();
+                break;
+            case "inListArrays":
+                rule = new ArrayInListRule();
+                break;
+            default:
+                try {
+                    rule = Class.forName(name).asSubclass(RewriteRule.class).getDeclaredConstructor().newInstance();
+                }
+                catch (Exception e) {
+                    LOG.error("Could not create sql rewrite rule " + name, e);
+                    continue;
+                }
+            }
+
+            if (config != null) {
+                rule.configure(config);
+            }
+            typeNames.addAll(rule.getColumnTypes());
+            result.add(new RuleStatistics(rule));
+        }
+        columnTypeNames = typeNames;
+        return result;
+    }
 
 
     /**
@@ -70,211 +232,658 @@ public class SqlRewriter {
      */
     public String rewrite(String sql, Connection con) {
 
+        long start = System.nanoTime();
         try {
             // initialize
-            fragments = new ArrayList<>();
-            aliases   = new HashMap<>();
-            joins     = new HashMap<>();
-            modified  = false;
+            aliases     = new HashMap<>();
+            joins       = new HashMap<>();
+            modified    = false;
+            fingerprint = SqlFingerprint.of(sql);
+            result      = sql;
+            tableNames  = null;
+            datatypes   = null;
 
             // parse the query
             parseQuery(sql);
+            queryType = classifyQuery(sql);
+            tableNames = collectTableNames(new HashSet<>());
 
             // rewrite specific parts of the query
-            replaceHllDistinctCount(con);
+            for (RuleStatistics rule : rules) {
+                long ruleStart = System.nanoTime();
+                boolean hit = rule.rule.apply(this, con);
+                rule.record(hit, System.nanoTime() - ruleStart);
+                modified |= hit;
+            }
+            if (tableNames != null) {
+                tableNames = collectTableNames(tableNames);
+            }
 
             if (!modified) {
                 return sql;
             }
 
             // generate the modified sql query
-            StringBuilder result = new StringBuilder();
+            StringBuilder query = new StringBuilder();
             for (SqlFragment fragment : fragments) {
-                result.append(fragment.getNewText() != null ? fragment.getNewText() : fragment.getText());
-                result.append(NL);
+                query.append(fragment.getCurrentText());
+                query.append(NL);
             }
 
-            RolapUtil.SQL_LOGGER.debug("rewritten to:\n" + result);
-            return result.toString();
+            RolapUtil.SQL_LOGGER.debug("rewritten to:\n" + query);
+            result      = query.toString();
+            fingerprint = null;
+            return result;
         }
         catch (Throwable e) {
             LOG.error("Error in SqlRewriter.rewrite()", e);
             return sql;
         }
+        finally {
+            rewriteCount.incrementAndGet();
+            rewriteNanos.addAndGet(System.nanoTime() - start);
+        }
     }
 
 
     /**
-     * parses the query by applying regular expressions to each line
+     * Parses the query into fragments and indexes the tables and joins
      */
     private void parseQuery(String sql) {
 
-        FragmentType lastKeyword = null;
+        fragments = SqlParser.parse(sql, fingerprint);
+
+        for (SqlFragment fragment : fragments) {
+            switch (fragment.getType()) {
+            case SELECT_AGGREGATION:
+            case TABLE:
+                aliases.put(fragment.getTableAlias(), fragment);
+                break;
+            case JOIN_CONDITION:
+                joins.put(fragment.getJoinedTableAlias(), fragment);
+                break;
+            default:
+                break;
+            }
+        }
+    }
 
-        // parse the query line by line
-        for (String text : sql.split(NL)) {
 
-            SqlFragment fragment = new SqlFragment(text);
-            fragments.add(fragment);
+    /**
+     * Determines the kind of query from the parsed fragments
+     */
+    private QueryType classifyQuery(String sql) {
 
-            // check for keywords (they are expected to appear alone on the line)
-            FragmentType type = KEYWORDS.get(text);
-            if (type != null) {
-                fragment.setType(type);
-                lastKeyword = type;
-                continue;
+        boolean select = false;
+        boolean groupBy = false;
+        for (SqlFragment fragment : fragments) {
+            switch (fragment.getType()) {
+            case SELECT_AGGREGATION:
+                return QueryType.SEGMENT_LOAD;
+            case SELECT_KEWORD:
+                select = true;
+                break;
+            case GROUP_BY_KEWORD:
+                groupBy = true;
+                break;
+            default:
+                break;
             }
+        }
 
-            text = text.trim();
+        if (groupBy || sql.startsWith("select distinct")) {
+            return QueryType.MEMBER;
+        }
+        return select ? QueryType.DRILLTHROUGH : QueryType.OTHER;
+    }
+
+
+    /**
+     * Retrieves the kind of the last rewritten query
+     */
+    public QueryType getQueryType() {
+        return queryType;
+    }
+
+
+    /**
+     * Retrieves the fingerprint of the query returned by the last rewrite
+     */
+    public String getFingerprint() {
+        if (fingerprint == null && result != null) {
+            fingerprint = SqlFingerprint.of(result);
+        }
+        return fingerprint;
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Access for the rewrite rules
+    // ------------------------------------------------------------------------
 
-            // parse SELECT expressions
-            if (lastKeyword == FragmentType.SELECT_KEWORD) {
 
-                Matcher aggregationExpr = SELECT_AGGREGATION_PATTERN.matcher(text);
-                if (aggregationExpr.matches()) {
-                    fragment.setType(FragmentType.SELECT_AGGREGATION);
-                    fragment.setAggFunction(aggregationExpr.group(1).trim());
-                    fragment.setTableAlias(aggregationExpr.group(2));
-                    fragment.setColumnName(aggregationExpr.group(3));
-                    fragment.setResultAlias(aggregationExpr.group(4));
-                    fragment.setHasNext(aggregationExpr.group(5) != null);
-                    aliases.put(fragment.getTableAlias(), fragment);
+    /**
+     * Retrieves the tables (schema.table, in lower case) that the last
+     * rewritten query reads, before and after rewriting. Returns null if
+     * they are not known.
+     */
+    public Set<String> getTableNames() {
+        return tableNames;
+    }
+
+
+    /**
+     * Adds the tables of the fragments to the set. Returns null if the from
+     * clause contains anything else, e.g. a sub-select.
+     */
+    private Set<String> collectTableNames(Set<String> names) {
+
+        boolean from = false;
+        for (SqlFragment fragment : fragments) {
+            switch (fragment.getType()) {
+            case FROM_KEWORD:
+                from = true;
+                break;
+            case WHERE_KEWORD:
+            case GROUP_BY_KEWORD:
+            case ORDER_BY_KEWORD:
+                from = false;
+                break;
+            case TABLE:
+                names.add((fragment.getSchemaName() + "." + fragment.getTableName()).toLowerCase());
+                break;
+            default:
+                if (from) {
+                    return null;
                 }
             }
+        }
+        return names.isEmpty() ? null : names;
+    }
 
-            // parse FROM expressions
-            if (lastKeyword == FragmentType.FROM_KEWORD) {
 
-                Matcher tableExpr = TABLE_PATTERN.matcher(text);
-                if (tableExpr.matches()) {
-                    fragment.setType(FragmentType.TABLE);
-                    fragment.setSchemaName(tableExpr.group(1));
-                    fragment.setTableName(tableExpr.group(2));
-                    fragment.setTableAlias(tableExpr.group(3));
-                    aliases.put(fragment.getTableAlias(), fragment);
-                }
+    /**
+     * Retrieves the parsed fragments of the last rewritten query
+     */
+    public List<SqlFragment> getFragments() {
+        return fragments;
+    }
+
+
+    /**
+     * Retrieves the table with the given alias, or null if there is none
+     */
+    public SqlFragment getTable(String alias) {
+        SqlFragment table = aliases.get(alias);
+        return table != null && table.getType() == FragmentType.TABLE ? table : null;
+    }
+
+
+    /**
+     * Retrieves the join conditions of the query
+     */
+    public List<SqlFragment> getJoins() {
+        return new ArrayList<>(joins.values());
+    }
+
+
+    /**
+     * Retrieves the type name of a table column, if it is one of the types
+     * that the rules asked for in {@link RewriteRule#getColumnTypes()}
+     */
+    public String getColumnType(SqlFragment table, String columnName) {
+        String fullColumnName = (table.getSchemaName() + "." + table.getTableName() + "." + columnName).toLowerCase();
+        return getColumnTypes().get(fullColumnName);
+    }
+
+
+    /**
+     * Retrieves the Mondrian datatype of the measure that aggregates a table
+     * column with the given aggregator, or null if there is no such measure
+     */
+    public String getMeasureDatatype(SqlFragment table, String columnName, String aggregator) {
+
+        // the schema of the server that sends the query, which differs from
+        // the active one while an old server finishes its queries after a reload
+        if (datatypes == null) {
+            datatypes = generationDatatypes.get(ExecutionContext.current().getSchemaGeneration());
+            if (datatypes == null) {
+                datatypes = measureDatatypes;
             }
+        }
+        return datatypes.get(getMeasureKey(table.getSchemaName(), table.getTableName(), columnName, aggregator));
+    }
 
-            // parse WHERE expressions
-            if (lastKeyword == FragmentType.WHERE_KEWORD || lastKeyword == FragmentType.AND_KEWORD) {
-
-                Matcher joinExpr = JOIN_CONDITION_PATTERN.matcher(text);
-                if (joinExpr.matches()) {
-                    fragment.setType(FragmentType.JOIN_CONDITION);
-                    fragment.setTableAlias(joinExpr.group(1));
-                    fragment.setColumnName(joinExpr.group(2));
-                    fragment.setJoinedTableAlias(joinExpr.group(3));
-                    fragment.setJoinedColumnName(joinExpr.group(4));
-                    joins.put(fragment.getJoinedTableAlias(), fragment);
-                }
 
-                // sometimes conditions are in brackets
-                if (text.startsWith("(") && text.endsWith(")")) {
-                    text = text.substring(1, text.length() - 1);
-                }
+    /**
+     * Sets the Mondrian datatypes of the measures in a generation of the
+     * schema, by {@link #getMeasureKey}
+     */
+    public static void setMeasureDatatypes(int generation, Map<String, String> datatypes) {
+        generationDatatypes.put(generation, datatypes);
+    }
 
-                Matcher conditionExpr = EQUALS_CONDITION_PATTERN.matcher(text);
-                if (!conditionExpr.matches()) {
-                    conditionExpr = IN_CONDITION_PATTERN.matcher(text);
-                }
 
-                if (conditionExpr.matches()) {
-                    fragment.setType(FragmentType.CONDITION);
-                    fragment.setTableAlias(conditionExpr.group(1));
-                    fragment.setColumnName(conditionExpr.group(2));
-                }
-              }
+    /**
+     * Uses the datatypes of a schema generation for queries that cannot be
+     * attributed to a Mondrian server
+     */
+    public static void activateMeasureDatatypes(int generation) {
+        Map<String, String> datatypes = generationDatatypes.get(generation);
+        if (datatypes != null) {
+            measureDatatypes = datatypes;
         }
     }
 
 
-    // ------------------------------------------------------------------------
-    // Replacement functions
-    // ------------------------------------------------------------------------
+    /**
+     * Removes the datatypes of a schema generation that is no longer used
+     */
+    public static void removeMeasureDatatypes(int generation) {
+        generationDatatypes.remove(generation);
+    }
 
 
     /**
-     * Checks for distinct counts on columns that are of type hyperloglog
+     * Key of a measure for {@link #setMeasureDatatypes}
      */
-    private void replaceHllDistinctCount(Connection con) {
+    public static String getMeasureKey(String schemaName, String tableName, String columnName, String aggregator) {
+        return (schemaName + "." + tableName + "." + columnName + ":" + aggregator).toLowerCase();
+    }
 
-        Set<String> hllColumns = getHyperLogLogColumns(con);
 
-        for (SqlFragment fragment : fragments) {
-            // check sum and count distinct expressions
-            if (fragment.getType() == FragmentType.SELECT_AGGREGATION
-                    && (fragment.getAggFunction().equals("count(distinct")
-                        || fragment.getAggFunction().equals( "sum(" ))) {
-
-                // check if the aggregated column is of type hll
-                SqlFragment table = aliases.get(fragment.getTableAlias());
-                if (table == null) {
-                    continue;
-                }
+    /**
+     * Removes a table, a join or a condition from the query, together with
+     * the comma or "and" that separates it from its neighbours, or the
+     * "where" if it was the only condition
+     */
+    public void removeFragment(SqlFragment fragment) {
 
-                String fullColumnName = (table.getSchemaName() + "." + table.getTableName() + "." + fragment.getColumnName()).toLowerCase();
-                if (hllColumns.contains(fullColumnName)) {
-                    // rewrite using hll functions
-                    fragment.setNewText(
-                            "    hll_cardinality(hll_union_agg("
-                                    + "\"" + fragment.getTableAlias() + "\".\"" + fragment.getColumnName() + "\""
-                                    + ")) as \"" + fragment.getResultAlias() + "\""
-                                    + (fragment.hasNext() ? "," : "" ) );
-                    modified = true;
-                }
+        int index = fragments.indexOf(fragment);
+        if (index < 0) {
+            return;
+        }
+        SqlFragment previous = index > 0 ? fragments.get(index - 1) : null;
+        SqlFragment next = index + 1 < fragments.size() ? fragments.get(index + 1) : null;
+        fragments.remove(index);
+
+        if (fragment.getType() == FragmentType.TABLE) {
+            aliases.remove(fragment.getTableAlias());
+            // the previous table must not end with a comma, if this was the last one
+            if (!fragment.getText().endsWith(",") && previous != null && previous.getType() == FragmentType.TABLE) {
+                String text = previous.getCurrentText();
+                previous.setNewText(text.substring(0, text.length() - 1));
             }
+            return;
+        }
+
+        if (fragment.getType() == FragmentType.JOIN_CONDITION) {
+            joins.values().remove(fragment);
+        }
+        if (previous != null && previous.getType() == FragmentType.AND_KEWORD) {
+            fragments.remove(previous);
         }
+        else if (next != null && next.getType() == FragmentType.AND_KEWORD) {
+            fragments.remove(next);
+        }
+        else if (previous != null && previous.getType() == FragmentType.WHERE_KEWORD && (next == null
+                || next.getType() == FragmentType.GROUP_BY_KEWORD || next.getType() == FragmentType.ORDER_BY_KEWORD)) {
+            // this was the only condition, so the where keyword goes as well
+            fragments.remove(previous);
+        }
+    }
+
+
+    /**
+     * Adds a condition after a fragment of the where clause
+     */
+    public void addConditionAfter(SqlFragment fragment, String condition) {
+
+        SqlFragment and = new SqlFragment("and");
+        and.setType(FragmentType.AND_KEWORD);
+
+        int index = fragments.indexOf(fragment);
+        fragments.add(index + 1, and);
+        fragments.add(index + 2, new SqlFragment("    " + condition));
     }
 
 
+
+
     // ------------------------------------------------------------------------
     // Cached database access methods
     // ------------------------------------------------------------------------
 
     /**
-     * Clears the internal caches
+     * Clears the internal caches. The column metadata is reloaded in the
+     * background and stays available until then.
      */
     public static synchronized void clearCache() {
 
-        hyperLogLogColumnsCache = null;
+        refreshColumnTypes();
+        clearDimensionTables();
+        SqlParser.clearCache();
     }
 
 
     /**
-     * Retrieves all columns of type hll from the database.
+     * Removes the cached data of the given tables (schema.table, in lower
+     * case), after they were changed
      */
-    private static synchronized Set<String> getHyperLogLogColumns(Connection con) {
+    public static synchronized void clearCache(Set<String> tables) {
 
-        // check the cache
-        if (hyperLogLogColumnsCache != null) {
-            return hyperLogLogColumnsCache;
+        // the key of a dimension may be filtered through other tables, so a
+        // targeted flush drops all snapshots and not only those of the tables
+        clearDimensionTables();
+    }
+
+
+    /**
+     * Returns the statistics as text
+     */
+    public static String getStatistics() {
+
+        long count = rewriteCount.get();
+        StringBuilder result = new StringBuilder();
+        result.append("SQL rewriter: " + count + " queries, avg "
+                + (count == 0 ? 0 : rewriteNanos.get() / count / 1000) + " us, " + SqlParser.getStatistics() + "\n");
+        for (RuleStatistics rule : rules) {
+            result.append("    " + rule + "\n");
+        }
+        result.append("    column metadata: " + columnTypesCache.size() + " columns"
+                + (metadataLoaded ? ", loaded " + (System.currentTimeMillis() - metadataLoadTime) / 1000 + " s ago in "
+                        + metadataLoadMillis + " ms" : ", not loaded") + "\n");
+        result.append("    dimension tables: " + dimensionTablesCache.size() + " snapshots, "
+                + dimensionTablesPending.size() + " loading\n");
+        return result.toString();
+    }
+
+
+    /**
+     * Retrieves the columns with the types needed by the rules, by lower case
+     * schema.table.column. This never waits for the database: if the metadata
+     * could not be loaded yet, a reload is started in the background.
+     */
+    private static Map<String, String> getColumnTypes() {
+
+        if (!metadataLoaded && System.currentTimeMillis() - metadataAttemptTime > METADATA_RETRY_MILLIS) {
+            refreshColumnTypes();
+        }
+        return columnTypesCache;
+    }
+
+
+    /**
+     * Starts a reload of the column metadata in the background, unless one is
+     * already pending
+     */
+    private static void refreshColumnTypes() {
+
+        if (metadataRefreshPending.compareAndSet(false, true)) {
+            METADATA_LOADER.execute(() -> {
+                metadataRefreshPending.set(false);
+                loadColumnTypes();
+            });
+        }
+    }
+
+
+    /**
+     * Loads the columns with the types needed by the rules from the database
+     * on a separate connection and replaces the cached metadata
+     */
+    private static void loadColumnTypes() {
+
+        long start = System.currentTimeMillis();
+        metadataAttemptTime = start;
+        Set<String> typeNames = columnTypeNames;
+        String url = metadataUrl;
+        if (url == null) {
+            return;
+        }
+        if (typeNames.isEmpty()) {
+            columnTypesCache = Collections.emptyMap();
+            metadataLoaded   = true;
+            return;
+        }
+
+        StringBuilder typeList = new StringBuilder();
+        for (String typeName : typeNames) {
+            typeList.append(typeList.length() > 0 ? ", " : "").append("'" + typeName.replace("'", "''") + "'");
         }
 
-        // retrieve all hll columns from the database
-        String query = "\nselect lower(n.nspname || '.'  || c.relname || '.' || a.attname) AS hll_column\n"
+        // retrieve all matching columns from the database
+        String query = "\nselect lower(n.nspname || '.'  || c.relname || '.' || a.attname) AS column_name, t.typname\n"
                      + "from pg_attribute a\n"
                      + "join pg_class c on a.attrelid = c.oid\n"
                      + "join pg_namespace n ON c.relnamespace = n.oid\n"
                      + "join pg_type t on a.atttypid = t.oid\n"
-                     + "where typname = 'hll'";
+                     + "where typname in (" + typeList + ")\n"
+                     + "and not a.attisdropped";
 
         RolapUtil.SQL_LOGGER.debug(query);
 
-        try {
-            Set<String> columns = new HashSet<>();
+        try (Connection con = DRIVER.connect(url, new Properties())) {
+            if (con == null) {
+                LOG.warn("Column metadata is only supported for PostgreSQL");
+                columnTypesCache = Collections.emptyMap();
+                metadataLoaded   = true;
+                return;
+            }
+            Map<String, String> columns = new HashMap<>();
             try (Statement stmt = con.createStatement();
                  ResultSet rs = stmt.executeQuery(query)) {
                 while (rs.next()) {
-                    columns.add(rs.getString(1));
+                    columns.put(rs.getString(1), rs.getString(2));
                 }
             }
-            hyperLogLogColumnsCache = columns;
-            return columns;
+            columnTypesCache   = columns;
+            metadataLoadTime   = System.currentTimeMillis();
+            metadataLoadMillis = metadataLoadTime - start;
+            metadataLoaded     = true;
         }
         catch (Throwable e) {
-            LOG.error("Error in SqlRewriter.getHyperLogLogColumns()", e);
-            return Collections.emptySet();
+            LOG.error("Error in SqlRewriter.loadColumnTypes()", e);
         }
     }
-}
 
+
+    /**
+     * Retrieves the snapshot of a dimension table, if it was loaded less than
+     * "sqlRewrite.dimensionTableSeconds" ago. This never waits for the
+     * database: a missing or aging snapshot is (re)loaded in the background,
+     * and null is returned until it is available. Also returns null if the
+     * table has more than MAX_DIM_TABLE_SIZE rows.
+     */
+    static DimensionTable getDimensionTable(String schemaName, String tableName) {
+
+        long maxAge = dimensionTableSeconds * 1000L;
+        if (maxAge <= 0) {
+            return null;
+        }
+        String key = schemaName + "." + tableName;
+        DimensionSnapshot snapshot = dimensionTablesCache.get(key);
+        long age = snapshot == null ? Long.MAX_VALUE : System.currentTimeMillis() - snapshot.loadTime;
+
+        // failed loads are retried after a while, fresh snapshots are
+        // reloaded halfway through their lifetime, so they do not expire
+        if (snapshot == null || (snapshot.failed ? age > METADATA_RETRY_MILLIS : age > maxAge / 2)) {
+            loadDimensionTable(schemaName, tableName);
+        }
+        return snapshot != null && !snapshot.failed && age <= maxAge ? snapshot.table : null;
+    }
+
+
+    /**
+     * Loads a dimension table on a separate connection in the background,
+     * unless a load is already pending
+     */
+    private static void loadDimensionTable(String schemaName, String tableName) {
+
+        String key = schemaName + "." + tableName;
+        String url = metadataUrl;
+        if (url == null || !dimensionTablesPending.add(key)) {
+            return;
+        }
+        long generation = dimensionGeneration.get();
+        DIMENSION_LOADER.execute(() -> {
+            long start = System.currentTimeMillis();
+            DimensionSnapshot snapshot;
+            try (Connection con = DRIVER.connect(url, new Properties())) {
+                if (con == null) {
+                    throw new IllegalStateException("Unsupported database url: " + url);
+                }
+                snapshot = new DimensionSnapshot(DimensionTable.load(con, schemaName, tableName, MAX_DIM_TABLE_SIZE),
+                        start, false);
+            }
+            catch (Throwable e) {
+                LOG.error("Error in SqlRewriter.loadDimensionTable() for " + key, e);
+                snapshot = new DimensionSnapshot(null, start, true);
+            }
+            finally {
+                dimensionTablesPending.remove(key);
+            }
+            // a snapshot that was loaded while the caches were flushed may
+            // already be outdated
+            synchronized (SqlRewriter.class) {
+                if (generation == dimensionGeneration.get()) {
+                    dimensionTablesCache.put(key, snapshot);
+                }
+            }
+        });
+    }
+
+
+    private static synchronized void clearDimensionTables() {
+        dimensionGeneration.incrementAndGet();
+        dimensionTablesCache = new ConcurrentHashMap<>();
+        dimensionRangesCache = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Executes a query for the minimum and maximum of an integer dimension
+     * key. The results are cached by query for
+     * DIMENSION_RANGES_CACHE_TIMEOUT_MILLIS and dropped when the caches are
+     * flushed. Only the calling query waits for the database, there is no
+     * global lock. Returns null if the key is not an integer, and a pair of
+     * nulls if no rows match.
+     */
+    static Pair<Long, Long> getDimensionRange(Connection con, String query) {
+
+        // check the cache
+        long now = System.currentTimeMillis();
+        DimensionRange cached = dimensionRangesCache.get(query);
+        if (cached != null && now - cached.loadTime <= DIMENSION_RANGES_CACHE_TIMEOUT_MILLIS) {
+            return cached.range;
+        }
+        long generation = dimensionGeneration.get();
+
+        RolapUtil.SQL_LOGGER.debug(query);
+
+        Pair<Long, Long> range = null;
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery(query)) {
+            if (rs.next()) {
+                Object min = rs.getObject(1);
+                Object max = rs.getObject(2);
+                if (min == null || max == null) {
+                    range = new Pair<>(null, null);
+                }
+                else if (isInteger(min) && isInteger(max)) {
+                    range = new Pair<>(((Number) min).longValue(), ((Number) max).longValue());
+                }
+            }
+        }
+        catch (Throwable e) {
+            // failures are not cached
+            LOG.error("Error in SqlRewriter.getDimensionRange()", e);
+            return null;
+        }
+
+        // a range that was queried while the caches were flushed may already be outdated
+        synchronized (SqlRewriter.class) {
+            if (generation == dimensionGeneration.get()) {
+                if (dimensionRangesCache.size() >= MAX_DIMENSION_RANGES) {
+                    dimensionRangesCache.values().removeIf(
+                            entry -> now - entry.loadTime > DIMENSION_RANGES_CACHE_TIMEOUT_MILLIS);
+                }
+                dimensionRangesCache.put(query, new DimensionRange(range, now));
+            }
+        }
+        return range;
+    }
+
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short;
+    }
+
+
+    /**
+     * The key range of a query on a dimension table and the time it was
+     * queried
+     */
+    static class DimensionRange {
+
+        final Pair<Long, Long> range;
+        final long             loadTime;
+
+        DimensionRange(Pair<Long, Long> range, long loadTime) {
+            this.range    = range;
+            this.loadTime = loadTime;
+        }
+    }
+
+
+    /**
+     * A dimension table and the time it was loaded. The table is null if it
+     * has too many rows or could not be loaded.
+     */
+    static class DimensionSnapshot {
+
+        final DimensionTable table;
+        final long           loadTime;
+        final boolean        failed;
+
+        DimensionSnapshot(DimensionTable table, long loadTime, boolean failed) {
+            this.table    = table;
+            this.loadTime = loadTime;
+            this.failed   = failed;
+        }
+    }
+
+
+    /**
+     * Hit counter and timing of a rule
+     */
+    private static class RuleStatistics {
+
+        final RewriteRule rule;
+        final AtomicLong  appliedCount = new AtomicLong();
+        final AtomicLong  hitCount     = new AtomicLong();
+        final AtomicLong  nanos        = new AtomicLong();
+
+
+        RuleStatistics(RewriteRule rule) {
+            this.rule = rule;
+        }
+
+
+        void record(boolean hit, long elapsedNanos) {
+            appliedCount.incrementAndGet();
+            nanos.addAndGet(elapsedNanos);
+            if (hit) {
+                hitCount.incrementAndGet();
+            }
+        }
+
+
+        @Override
+        public String toString() {
+            long count = appliedCount.get();
+            return "rule " + rule.getName() + ": " + hitCount.get() + " hits, avg "
+                    + (count == 0 ? 0 : nanos.get() / count / 1000) + " us";
+        }
+    }
+}
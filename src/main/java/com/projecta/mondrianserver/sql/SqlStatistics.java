@@ -0,0 +1,141 @@
+package com.projecta.mondrianserver.sql;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang.StringUtils;
+
+import com.projecta.mondrianserver.config.Config;
+
+/**
+ * Collects execution statistics for every sql query that is sent to the
+ * database, grouped by the {@link SqlFingerprint} of the query: the number of
+ * executions, latency percentiles, time to the first row, and the number of
+ * rows and bytes read.
+ */
+public class SqlStatistics {
+
+    private static volatile boolean enabled         = true;
+    private static volatile int     maxFingerprints = 1000;
+
+    private static final int MAX_SAMPLE_LENGTH = 2000;
+
+    // used once there are too many different fingerprints
+    private static final String OTHER = "(other)";
+
+    private static final Map<String, FingerprintStatistics> STATISTICS = new ConcurrentHashMap<>();
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        enabled         = config.getBooleanProperty("sqlStatistics.enabled", true);
+        maxFingerprints = config.getIntProperty("sqlStatistics.maxFingerprints", 1000);
+    }
+
+
+    /**
+     * Whether statistics are collected
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+
+    /**
+     * Records an execution of a query. Durations are in nanoseconds, the time
+     * to the first row is negative if no row was read.
+     */
+    public static void record(String fingerprint, String sql, long latencyNanos, long firstRowNanos,
+                              long rows, long bytes, boolean failed) {
+
+        FingerprintStatistics statistics = STATISTICS.get(fingerprint);
+        if (statistics == null) {
+            if (STATISTICS.size() >= maxFingerprints) {
+                fingerprint = OTHER;
+                sql = null;
+            }
+            String sample = StringUtils.abbreviate(sql, MAX_SAMPLE_LENGTH);
+            statistics = STATISTICS.computeIfAbsent(fingerprint, f -> new FingerprintStatistics(sample));
+        }
+
+        statistics.latency.record(latencyNanos / 1000);
+        if (firstRowNanos >= 0) {
+            statistics.firstRow.record(firstRowNanos / 1000);
+        }
+        statistics.rows.add(rows);
+        statistics.bytes.add(bytes);
+        if (failed) {
+            statistics.errors.increment();
+        }
+    }
+
+
+    /**
+     * Removes all statistics
+     */
+    public static void clear() {
+        STATISTICS.clear();
+    }
+
+
+    /**
+     * Returns the statistics of the fingerprints with the highest total
+     * execution time, as a list of maps that can be serialized to JSON
+     */
+    public static List<Map<String, Object>> getStatistics(int limit) {
+
+        List<Map.Entry<String, FingerprintStatistics>> entries = new ArrayList<>(STATISTICS.entrySet());
+        entries.sort(Comparator.comparingLong(
+                (Map.Entry<String, FingerprintStatistics> e) -> e.getValue().latency.getTotal()).reversed());
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map.Entry<String, FingerprintStatistics> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+            FingerprintStatistics statistics = entry.getValue();
+            long count = statistics.latency.getCount();
+
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("fingerprint",       entry.getKey());
+            item.put("count",             count);
+            item.put("errors",            statistics.errors.sum());
+            item.put("totalMillis",       statistics.latency.getTotal() / 1000);
+            item.put("avgMillis",         count == 0 ? 0 : statistics.latency.getTotal() / count / 1000.0);
+            item.put("p50Millis",         statistics.latency.getPercentile(0.50) / 1000.0);
+            item.put("p95Millis",         statistics.latency.getPercentile(0.95) / 1000.0);
+            item.put("p99Millis",         statistics.latency.getPercentile(0.99) / 1000.0);
+            item.put("maxMillis",         statistics.latency.getMax() / 1000.0);
+            item.put("firstRowP50Millis", statistics.firstRow.getPercentile(0.50) / 1000.0);
+            item.put("firstRowP95Millis", statistics.firstRow.getPercentile(0.95) / 1000.0);
+            item.put("rows",              statistics.rows.sum());
+            item.put("bytes",             statistics.bytes.sum());
+            item.put("sample",            statistics.sample);
+            result.add(item);
+        }
+        return result;
+    }
+
+
+    /**
+     * Statistics for a single fingerprint
+     */
+    private static class FingerprintStatistics {
+
+        final String           sample;
+        final LatencyHistogram latency  = new LatencyHistogram();
+        final LatencyHistogram firstRow = new LatencyHistogram();
+        final LongAdder        rows     = new LongAdder();
+        final LongAdder        bytes    = new LongAdder();
+        final LongAdder        errors   = new LongAdder();
+
+        FingerprintStatistics(String sample) {
+            this.sample = sample;
+        }
+    }
+}
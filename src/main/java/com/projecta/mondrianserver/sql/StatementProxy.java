@@ -0,0 +1,524 @@
+package com.projecta.mondrianserver.sql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.sql.SqlRewriter.QueryType;
+
+/**
+ * Delegating wrapper for java.sql.Statement that rewrites queries with the
+ * {@link SqlRewriter} before execution and wraps every returned ResultSet.
+ * If the {@link ResultCache} is enabled, queries are answered from the cache
+ * where possible and their results are recorded for the cache otherwise.
+ * With {@link InFlightQueries} enabled, a query that is identical to one that
+ * is currently running waits for the result of the running one.
+ *
+ * Queries of the kinds configured for {@link StreamingFetch} are read with a
+ * server side cursor, and queries that take longer than the threshold of the
+ * {@link SlowQueryLog} are captured there. The {@link ConcurrencyLimiter}
+ * decides how many queries may run on the database at the same time, and
+ * large segment loads may be split into sub-queries by {@link ParallelSplit}.
+ * Concurrent segment loads that only differ in their group by columns may be
+ * combined into one query by the {@link GroupingSetsBatcher}.
+ */
+public class StatementProxy implements Statement {
+
+    protected final ConnectionProxy connection;
+    protected final Statement       statement;
+
+    // completed by cancel() to end the wait for an identical running query
+    private volatile CompletableFuture<Void> cancelSignal = new CompletableFuture<>();
+
+    // sub-queries of a split query that is currently executed
+    private volatile ParallelSplit.Plan parallelPlan;
+
+    // state of the query that is currently executed on the database
+    private String           querySql;
+    private SqlRewriter      queryRewriter;
+    private long             queryStartNanos;
+    private boolean          queryFailed;
+    private QueryType        queryType;
+    private ExecutionContext queryContext;
+    private long             queryThreadId;
+    private long             allocatedBytes;
+    private boolean          limited;
+    private boolean          streaming;
+    private boolean          restoreAutoCommit;
+    private int              previousFetchSize;
+
+    // counts the executions, so that a result of an earlier one cannot end the current query
+    private int              queryNumber;
+
+    private static final Logger LOG = Logger.getLogger(StatementProxy.class);
+
+
+    public StatementProxy(ConnectionProxy connection, Statement statement) {
+        this.connection = connection;
+        this.statement  = statement;
+    }
+
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+
+        // taken first, as the rewrite may already use cached dimension data
+        long epoch = ResultCache.getEpoch();
+        SqlRewriter rewriter = new SqlRewriter();
+        sql = rewriter.rewrite(sql, connection.getDelegate());
+
+        // results with a row limit are incomplete, so they are neither cached nor shared
+        boolean cache  = ResultCache.isEnabled() && statement.getMaxRows() == 0;
+        boolean shared = InFlightQueries.isEnabled() && statement.getMaxRows() == 0;
+
+        if (cache || shared) {
+            String key = ResultCache.normalize(sql);
+            if (cache) {
+                CachedResult cached = ResultCache.get(key);
+                if (cached != null) {
+                    return new CachedResultSet(this, cached);
+                }
+            }
+
+            InFlightQueries.Flight flight = null;
+            if (shared) {
+                flight = InFlightQueries.start(key);
+                if (flight == null) {
+                    cancelSignal = new CompletableFuture<>();
+                    CachedResult result = InFlightQueries.await(key, cancelSignal, statement.getQueryTimeout());
+                    if (result != null) {
+                        return new CachedResultSet(this, result);
+                    }
+                }
+            }
+
+            try {
+                ResultSet resultSet = execute(sql, rewriter);
+                return new ResultSetProxy(this, resultSet, new ResultRecorder(key, rewriter.getTableNames(), resultSet, cache, flight,
+                        epoch));
+            }
+            catch (SQLException | RuntimeException e) {
+                if (flight != null) {
+                    flight.complete(null);
+                }
+                throw e;
+            }
+        }
+
+        return wrap(execute(sql, rewriter));
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return wrap(statement.getResultSet());
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return wrap(statement.getGeneratedKeys());
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : statement.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || statement.isWrapperFor(iface);
+    }
+
+
+    /**
+     * Executes the query on the database, using a server side cursor for
+     * queries that are streamed and sub-queries for queries that are split
+     */
+    private ResultSet execute(String sql, SqlRewriter rewriter) throws SQLException {
+
+        // re-executing closes the previous result, whether it was closed or not
+        endQuery(0, 0, -1);
+        queryNumber++;
+
+        this.querySql        = sql;
+        this.queryRewriter   = rewriter;
+        this.queryStartNanos = System.nanoTime();
+        this.queryFailed     = false;
+        this.queryType       = rewriter.getQueryType();
+        this.queryContext    = ExecutionContext.current();
+        this.queryThreadId   = Thread.currentThread().getId();
+        this.allocatedBytes  = StreamingFetch.getAllocatedBytes();
+
+        if (queryContext.getExecutionId() >= 0) {
+            RunningStatements.register(queryContext.getExecutionId(), this);
+        }
+
+        try {
+            ParallelSplit.Plan plan = ParallelSplit.isEnabled() ? ParallelSplit.plan(rewriter, connection) : null;
+
+            GroupingSetsBatcher.Member batch = null;
+            if (plan == null && GroupingSetsBatcher.isEnabled()) {
+                batch = GroupingSetsBatcher.join(rewriter, connection);
+                if (batch != null && !batch.isLeader()) {
+                    cancelSignal = new CompletableFuture<>();
+                    CachedResult result = batch.await(cancelSignal, statement.getQueryTimeout());
+                    if (result != null) {
+                        return new CachedResultSet(this, result);
+                    }
+                    batch = null;
+                }
+            }
+
+            try {
+                return executeOnDatabase(sql, plan, batch);
+            }
+            finally {
+                if (batch != null) {
+                    batch.release();
+                }
+            }
+        }
+        catch (SQLException | RuntimeException e) {
+            queryFailed = true;
+            endQuery(0, 0, -1);
+            throw e;
+        }
+    }
+
+
+    /**
+     * Executes the query, its sub-queries or the combined query of its batch
+     */
+    private ResultSet executeOnDatabase(String sql, ParallelSplit.Plan plan, GroupingSetsBatcher.Member batch)
+            throws SQLException {
+
+        if (plan == null && StreamingFetch.isStreamed(queryType)) {
+            // the postgres driver only uses a cursor inside of a transaction
+            Connection con = connection.getDelegate();
+            if (con.getAutoCommit()) {
+                con.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+            previousFetchSize = statement.getFetchSize();
+            statement.setFetchSize(StreamingFetch.getFetchSize());
+            streaming = true;
+        }
+
+        // a split query takes a single slot, although its sub-queries use several connections
+        if (ConcurrencyLimiter.isEnabled()) {
+            ConcurrencyLimiter.acquire();
+            limited = true;
+
+            // the time spent waiting for a slot is not part of the query latency
+            queryStartNanos = System.nanoTime();
+        }
+
+        if (plan != null) {
+            parallelPlan = plan;
+            try {
+                return new CachedResultSet(this, plan.execute(connection, statement.getQueryTimeout()));
+            }
+            finally {
+                parallelPlan = null;
+            }
+        }
+        if (batch != null) {
+            CachedResult result = batch.execute(statement);
+            if (result != null) {
+                return new CachedResultSet(this, result);
+            }
+        }
+        return statement.executeQuery(sql);
+    }
+
+
+    /**
+     * Retrieves the number of the current execution
+     */
+    int getQueryNumber() {
+        return queryNumber;
+    }
+
+
+    /**
+     * Ends the query if it is still the given execution
+     */
+    void endQuery(int number, long rows, long bytes, long firstRowNanos) {
+        if (number == queryNumber) {
+            endQuery(rows, bytes, firstRowNanos);
+        }
+    }
+
+
+    /**
+     * Called when the result of the query executed by {@link #execute} was
+     * closed. Records the statistics and ends the transaction of a streamed
+     * query.
+     */
+    void endQuery(long rows, long bytes, long firstRowNanos) {
+
+        if (queryType == null) {
+            return;
+        }
+
+        if (queryContext.getExecutionId() >= 0) {
+            RunningStatements.unregister(queryContext.getExecutionId(), this);
+        }
+
+        long latencyNanos = System.nanoTime() - queryStartNanos;
+        String fingerprint = SqlStatistics.isEnabled() || limited ? queryRewriter.getFingerprint() : null;
+        if (limited) {
+            limited = false;
+            ConcurrencyLimiter.release(fingerprint, latencyNanos, queryFailed);
+        }
+        if (SqlStatistics.isEnabled()) {
+            SqlStatistics.record(fingerprint, querySql, latencyNanos,
+                    firstRowNanos < 0 ? -1 : firstRowNanos - queryStartNanos, rows, bytes, queryFailed);
+        }
+        if (SlowQueryLog.isSlow(latencyNanos)) {
+            SlowQueryLog.capture(querySql, latencyNanos, rows, queryFailed, queryContext, connection);
+        }
+
+        if (queryThreadId == Thread.currentThread().getId() && allocatedBytes >= 0) {
+            StreamingFetch.recordAllocation(queryType, StreamingFetch.getAllocatedBytes() - allocatedBytes);
+        }
+        queryType     = null;
+        querySql      = null;
+        queryRewriter = null;
+        queryContext  = null;
+
+        if (streaming) {
+            streaming = false;
+            try {
+                statement.setFetchSize(previousFetchSize);
+                if (restoreAutoCommit) {
+                    restoreAutoCommit = false;
+                    Connection con = connection.getDelegate();
+                    con.commit();
+                    con.setAutoCommit(true);
+                }
+            }
+            catch (SQLException e) {
+                LOG.warn("Failed to end streamed query", e);
+            }
+        }
+    }
+
+
+    /**
+     * Creates a wrapper for a result set returned by the database
+     */
+    protected ResultSet wrap(ResultSet resultSet) {
+        return resultSet == null ? null : new ResultSetProxy(this, resultSet);
+    }
+
+
+    // ------------------------------------------------------------------------
+    // Delegated methods
+    // ------------------------------------------------------------------------
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        return statement.executeUpdate(sql);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        endQuery(0, 0, -1);
+        statement.close();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return statement.getMaxFieldSize();
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        statement.setMaxFieldSize(max);
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return statement.getMaxRows();
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        statement.setMaxRows(max);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        statement.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return statement.getQueryTimeout();
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        statement.setQueryTimeout(seconds);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        cancelSignal.complete(null);
+        ParallelSplit.Plan plan = parallelPlan;
+        if (plan != null) {
+            plan.cancel();
+        }
+        statement.cancel();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return statement.getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        statement.clearWarnings();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        statement.setCursorName(name);
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        return statement.execute(sql);
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return statement.getUpdateCount();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return statement.getMoreResults();
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        statement.setFetchDirection(direction);
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return statement.getFetchDirection();
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        statement.setFetchSize(rows);
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return statement.getFetchSize();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return statement.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return statement.getResultSetType();
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        statement.addBatch(sql);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        statement.clearBatch();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        return statement.executeBatch();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return statement.getMoreResults(current);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        return statement.executeUpdate(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        return statement.executeUpdate(sql, columnIndexes);
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        return statement.executeUpdate(sql, columnNames);
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        return statement.execute(sql, autoGeneratedKeys);
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        return statement.execute(sql, columnIndexes);
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        return statement.execute(sql, columnNames);
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return statement.getResultSetHoldability();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return statement.isClosed();
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        statement.setPoolable(poolable);
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return statement.isPoolable();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        statement.closeOnCompletion();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return statement.isCloseOnCompletion();
+    }
+}
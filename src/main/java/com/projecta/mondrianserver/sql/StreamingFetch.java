@@ -0,0 +1,138 @@
+package com.projecta.mondrianserver.sql;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import com.projecta.mondrianserver.config.Config;
+import com.projecta.mondrianserver.sql.SqlRewriter.QueryType;
+
+/**
+ * Settings and statistics for streaming query results with a server side
+ * cursor. The postgres driver reads the complete result into memory, unless
+ * autocommit is off and a fetch size is set, so for the configured kinds of
+ * queries the {@link StatementProxy} switches to a cursor based fetch.
+ *
+ * To judge the effect, the heap memory allocated by the executing thread
+ * between the execution of a query and the closing of its result is recorded
+ * per kind of query.
+ */
+public class StreamingFetch {
+
+    private static volatile Set<QueryType> queryTypes = EnumSet.noneOf(QueryType.class);
+    private static volatile int            fetchSize  = 10000;
+
+    private static final Map<QueryType, MemoryStatistics> STATISTICS = new ConcurrentHashMap<>();
+
+    private static final Logger LOG = Logger.getLogger(StreamingFetch.class);
+
+    private static final double MB = 1024.0 * 1024.0;
+
+
+    /**
+     * Reads the settings from the mondrian-server.properties
+     */
+    public static void configure(Config config) {
+
+        Set<QueryType> types = EnumSet.noneOf(QueryType.class);
+        for (String type : StringUtils.split(config.getProperty("streaming.queryTypes", ""), ", ")) {
+            try {
+                types.add(QueryType.valueOf(type.trim().toUpperCase()));
+            }
+            catch (IllegalArgumentException e) {
+                LOG.error("Unknown query type in streaming.queryTypes: " + type);
+            }
+        }
+        queryTypes = types;
+        fetchSize  = config.getIntProperty("streaming.fetchSize", 10000);
+    }
+
+
+    /**
+     * Whether the results of this kind of query should be streamed
+     */
+    public static boolean isStreamed(QueryType queryType) {
+        return queryTypes.contains(queryType);
+    }
+
+
+    /**
+     * Number of rows fetched at once from the cursor
+     */
+    public static int getFetchSize() {
+        return fetchSize;
+    }
+
+
+    /**
+     * Retrieves the number of bytes allocated by the current thread so far,
+     * or -1 if the JVM does not support this
+     */
+    static long getAllocatedBytes() {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+
+    /**
+     * Records the bytes allocated while executing and reading a query
+     */
+    static void recordAllocation(QueryType queryType, long allocatedBytes) {
+
+        if (allocatedBytes >= 0) {
+            STATISTICS.computeIfAbsent(queryType, t -> new MemoryStatistics()).record(allocatedBytes);
+        }
+    }
+
+
+    /**
+     * Returns the statistics as text
+     */
+    public static String getStatistics() {
+
+        StringBuilder result = new StringBuilder();
+        result.append("Streaming: " + (queryTypes.isEmpty() ? "disabled" : queryTypes + ", fetch size " + fetchSize) + "\n");
+
+        for (QueryType queryType : QueryType.values()) {
+            MemoryStatistics statistics = STATISTICS.get(queryType);
+            if (statistics != null) {
+                long count = statistics.count.get();
+                result.append("  Heap allocated per " + queryType + " query: "
+                        + "avg " + Math.round(statistics.total.get() / MB / Math.max(count, 1)) + " MB, "
+                        + "max " + Math.round(statistics.max.get() / MB) + " MB, "
+                        + "last " + Math.round(statistics.last / MB) + " MB ("
+                        + count + " queries" + (isStreamed(queryType) ? ", streamed" : "") + ")\n");
+            }
+        }
+        return result.toString();
+    }
+
+
+    /**
+     * Allocation statistics for one kind of query
+     */
+    private static class MemoryStatistics {
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max   = new AtomicLong();
+        volatile long    last;
+
+        void record(long bytes) {
+            count.incrementAndGet();
+            total.addAndGet(bytes);
+            max.accumulateAndGet(bytes, Math::max);
+            last = bytes;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.util.Properties;
 import org.olap4j.OlapConnection;
 
 import com.projecta.mondrianserver.mondrian.MondrianConnector;
+import com.projecta.mondrianserver.mondrian.QueryRecorder;
 
 import mondrian.xmla.XmlaHandler;
 
@@ -23,7 +24,7 @@ public class XmlaConnectionFactory implements XmlaHandler.ConnectionFactory {
 
         OlapConnection connection = MondrianConnector.getMondrianServer().getConnection(catalog, schema, roleName, props);
         MondrianConnector.applyPermissions(connection);
-        return connection;
+        return QueryRecorder.wrap(connection);
     }
 
     @Override